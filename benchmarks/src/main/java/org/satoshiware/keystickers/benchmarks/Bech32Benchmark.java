@@ -0,0 +1,61 @@
+/*
+ *      The generic Bech32 routines: encode, decode, and convertBits.
+ *
+ *      This program is free software: you can redistribute it and/or modify
+ *      it under the terms of the GNU General Public License as published by
+ *      the Free Software Foundation, either version 3 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License
+ *      along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.satoshiware.keystickers.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.satoshiware.keystickers.Bech32;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Bech32Benchmark {
+    private byte[] hash; // 20-byte public key hash
+    private byte[] values; // Witness version + program in 5 bit groups
+    private String address;
+
+    @Setup
+    public void setup() {
+        hash = new byte[20];
+        new Random(21).nextBytes(hash);
+
+        byte[] converted = Bech32.convertBits(hash, 0, hash.length, 8, 5, true);
+        values = new byte[1 + converted.length];
+        System.arraycopy(converted, 0, values, 1, converted.length);
+        address = Bech32.encode("bc", values);
+    }
+
+    @Benchmark
+    public String encode() {
+        return Bech32.encode("bc", values);
+    }
+
+    @Benchmark
+    public Object decode() throws Exception {
+        return Bech32.decode(address);
+    }
+
+    @Benchmark
+    public byte[] convertBits() {
+        return Bech32.convertBits(hash, 0, hash.length, 8, 5, true);
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ *      Mixing typed text into the keyboard entropy seed.
+ *
+ *      This program is free software: you can redistribute it and/or modify
+ *      it under the terms of the GNU General Public License as published by
+ *      the Free Software Foundation, either version 3 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License
+ *      along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.satoshiware.keystickers.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.satoshiware.keystickers.KeyboardEntropy;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EntropyBenchmark {
+    @Param({"100", "1000"})
+    public int length; // Number of characters typed
+
+    private byte[] input;
+
+    @Setup
+    public void setup() {
+        input = new byte[length];
+        Random random = new Random(21);
+        for (int i = 0; i < length; i++) {
+            input[i] = (byte) (33 + random.nextInt(94)); // Printable ASCII
+        }
+    }
+
+    @Benchmark
+    public byte[] mix() {
+        return KeyboardEntropy.mix(input);
+    }
+}
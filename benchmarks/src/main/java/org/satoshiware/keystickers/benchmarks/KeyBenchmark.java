@@ -0,0 +1,96 @@
+/*
+ *      Key derivation and encoding: KSKey construction (BitcoinJ.ECKey), the
+ *      batch KeyEngine, and the WIF and P2WPKH encodings (generic and
+ *      specialized).
+ *
+ *      This program is free software: you can redistribute it and/or modify
+ *      it under the terms of the GNU General Public License as published by
+ *      the Free Software Foundation, either version 3 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License
+ *      along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.satoshiware.keystickers.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.satoshiware.keystickers.KSKey;
+import org.satoshiware.keystickers.KeyEngine;
+import org.satoshiware.keystickers.P2WPKHEncoder;
+import org.satoshiware.keystickers.WIFEncoder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KeyBenchmark {
+    private static final int BATCH = 24; // Keys on one sheet of Satoshi Coins
+
+    private final Random random = new Random(21); // Reproducible private keys (never used for real keys)
+    private byte[] privateKey;
+    private KSKey key;
+    private byte[] hash;
+
+    private final KeyEngine engine = new KeyEngine();
+    private final byte[][] privateKeys = new byte[BATCH][KeyEngine.KEYSIZE];
+    private final byte[][] publicKeys = new byte[BATCH][KeyEngine.PUBKEYSIZE];
+    private final byte[][] hashes = new byte[BATCH][KeyEngine.HASHSIZE];
+
+    private final WIFEncoder wifEncoder = new WIFEncoder(false);
+    private final P2WPKHEncoder p2wpkhEncoder = P2WPKHEncoder.forHrp("bc");
+    private final char[] chars = new char[64];
+
+    @Setup
+    public void setup() {
+        privateKey = new byte[32];
+        random.nextBytes(privateKey);
+        key = new KSKey(privateKey);
+        hash = key.getPubKeyHash();
+
+        for (byte[] k : privateKeys) {
+            random.nextBytes(k);
+        }
+    }
+
+    @Benchmark
+    public KSKey ksKey() {
+        return new KSKey(privateKey);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public byte[][] keyEngineBatch() {
+        engine.derive(privateKeys, BATCH, publicKeys, hashes);
+        return hashes;
+    }
+
+    @Benchmark
+    public String getWIF() {
+        return key.getWIF(false);
+    }
+
+    @Benchmark
+    public String getP2WPKH() {
+        return key.getP2WPKH("bc", 0);
+    }
+
+    @Benchmark
+    public int wifEncoder() {
+        return wifEncoder.encode(privateKey, chars, 0);
+    }
+
+    @Benchmark
+    public int p2wpkhEncoder() {
+        return p2wpkhEncoder.encode(hash, chars, 0);
+    }
+}
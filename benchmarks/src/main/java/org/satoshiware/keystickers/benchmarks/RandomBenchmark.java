@@ -0,0 +1,85 @@
+/*
+ *      Random sources: the mixed KSGenerator stream (one and two sources) and
+ *      the single byte calls of each source.
+ *
+ *      This program is free software: you can redistribute it and/or modify
+ *      it under the terms of the GNU General Public License as published by
+ *      the Free Software Foundation, either version 3 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License
+ *      along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.satoshiware.keystickers.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.satoshiware.keystickers.random.FortunaGenerator;
+import org.satoshiware.keystickers.random.KSGenerator;
+import org.satoshiware.keystickers.random.SecureRandom;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RandomBenchmark {
+    @Param({"32", "4096"})
+    public int size; // Bytes per call (one private key, or one full block)
+
+    private KSGenerator oneSource;
+    private KSGenerator twoSources;
+    private SecureRandom secureRandom;
+    private FortunaGenerator fortuna;
+    private byte[] bytes;
+
+    @Setup
+    public void setup() {
+        secureRandom = new SecureRandom();
+        fortuna = new FortunaGenerator(seed());
+
+        oneSource = new KSGenerator();
+        oneSource.addGenerator(new FortunaGenerator(seed()));
+
+        twoSources = new KSGenerator();
+        twoSources.addGenerator(new SecureRandom());
+        twoSources.addGenerator(new FortunaGenerator(seed()));
+
+        bytes = new byte[size];
+    }
+
+    private static byte[] seed() {
+        byte[] seed = new byte[64];
+        new java.security.SecureRandom().nextBytes(seed);
+        return seed;
+    }
+
+    @Benchmark
+    public byte[] ksGeneratorOneSource() {
+        oneSource.getBytes(bytes);
+        return bytes;
+    }
+
+    @Benchmark
+    public byte[] ksGeneratorTwoSources() {
+        twoSources.getBytes(bytes);
+        return bytes;
+    }
+
+    @Benchmark
+    public byte secureRandomGetByte() {
+        return secureRandom.getByte();
+    }
+
+    @Benchmark
+    public byte fortunaGetByte() {
+        return fortuna.getByte();
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ *      End-to-end render benchmark for the Keysticker (KSSheet) and Satoshi Coin
+ *      (SCSheet) sheets. Pages filled with fixed test keys are compiled and
+ *      rendered to offscreen 1-bit images (at several resolutions) and to
+ *      PostScript. Reports pages per second, bytes allocated per page, and
+ *      output bytes per page (PNG for the images).
+ *
+ *      Every render is also hashed (SHA-256 of the pixels, or of the page's
+ *      PostScript) and compared with the golden hashes in golden.properties,
+ *      so a faster renderer can be shown to draw exactly the same pages. Text
+ *      rasterization depends on the installed fonts and the JDK, so goldens are
+ *      keyed by both; "-record" (re)writes the goldens for this machine.
+ *
+ *      Usage: java -cp target/benchmarks.jar org.satoshiware.keystickers.benchmarks.RenderBenchmark
+ *                  [-n pages] [-dpi 300,600,1200] [-wi warmup rounds] [-i rounds] [-golden file] [-record]
+ *
+ *      This program is free software: you can redistribute it and/or modify
+ *      it under the terms of the GNU General Public License as published by
+ *      the Free Software Foundation, either version 3 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License
+ *      along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.satoshiware.keystickers.benchmarks;
+
+import org.satoshiware.keystickers.*;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.print.PageFormat;
+import java.awt.print.Paper;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.time.LocalDateTime;
+import java.util.*;
+
+public class RenderBenchmark {
+    private static final LocalDateTime TIMESTAMP = LocalDateTime.of(2009, 1, 3, 18, 15, 5); // Written on every test sheet
+    private static final int SATOSHIS = 100000; // Amount written on the Satoshi Coin test sheets
+
+    private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private int pages = 4; // Pages per round
+    private int[] dpis = {300, 600, 1200}; // Raster resolutions
+    private int warmup = 1; // Rounds that are not timed (their renders are still checked)
+    private int rounds = 3; // Timed rounds
+    private File goldenFile = new File("golden.properties");
+    private boolean record; // Write the hashes as the new goldens instead of checking them
+
+    private final String environment; // Goldens are only valid for the same fonts and JDK
+    private final Properties goldens = new Properties();
+    private final Map<String, String> recorded = new TreeMap<>();
+    private int mismatches;
+    private int unchecked;
+
+    private RenderBenchmark() {
+        String family = SheetFonts.getFamily() == null ? "default" : SheetFonts.getFamily();
+        environment = family.replace(' ', '_') + ".java" + System.getProperty("java.specification.version");
+    }
+
+    public static void main(String[] args) throws Exception {
+        RenderBenchmark benchmark = new RenderBenchmark();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-n":
+                    benchmark.pages = Integer.parseInt(args[++i]);
+                    break;
+                case "-dpi":
+                    benchmark.dpis = Arrays.stream(args[++i].split(",")).mapToInt(s -> Integer.parseInt(s.trim())).toArray();
+                    break;
+                case "-wi":
+                    benchmark.warmup = Integer.parseInt(args[++i]);
+                    break;
+                case "-i":
+                    benchmark.rounds = Integer.parseInt(args[++i]);
+                    break;
+                case "-golden":
+                    benchmark.goldenFile = new File(args[++i]);
+                    break;
+                case "-record":
+                    benchmark.record = true;
+                    break;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    System.err.println("Options: [-n pages] [-dpi 300,600,1200] [-wi warmup rounds] [-i rounds] [-golden file] [-record]");
+                    System.exit(2);
+            }
+        }
+        if (benchmark.pages < 1 || benchmark.rounds < 1 || benchmark.warmup < 0) {
+            throw new IllegalArgumentException("At least one page and one round are required");
+        }
+
+        System.exit(benchmark.run() ? 0 : 1);
+    }
+
+    // Runs every sheet type and output; returns false if any render differs from its golden
+    private boolean run() throws Exception {
+        if (goldenFile.isFile()) {
+            try (Reader in = new InputStreamReader(new FileInputStream(goldenFile), StandardCharsets.ISO_8859_1)) {
+                goldens.load(in);
+            }
+        }
+
+        System.out.println("Environment: " + environment + "; " + pages + " pages per round; " + warmup + " warmup and " + rounds + " timed rounds");
+        System.out.println(String.format("%-6s %-10s %12s %16s %16s  %s", "Sheet", "Output", "Pages/sec", "Alloc MB/page", "Output KB/page", "Golden"));
+
+        String[][][] keys = {keys("KS", 12), keys("SC", 24)};
+        String[] names = {"KS", "SC"};
+        for (int s = 0; s < names.length; s++) {
+            for (int dpi : dpis) {
+                int m = mismatches, u = unchecked;
+                report(names[s], dpi + "dpi", raster(names[s], keys[s], dpi), m, u);
+            }
+            int m = mismatches, u = unchecked;
+            report(names[s], "ps", postScript(names[s], keys[s]), m, u);
+        }
+
+        if (record) {
+            writeGoldens();
+            System.out.println("Recorded " + recorded.size() + " golden hashes for " + environment + " in " + goldenFile);
+        } else if (unchecked > 0) {
+            System.out.println(unchecked + " renders have no golden hash for " + environment + " (use -record to create them)");
+        }
+        if (mismatches > 0) {
+            System.out.println(mismatches + " renders DIFFER from their golden hash");
+        }
+
+        return mismatches == 0;
+    }
+
+    // Renders every page to a 1-bit image at the resolution
+    private Result raster(String name, String[][] keys, int dpi) throws Exception {
+        RasterExport export = new RasterExport(new File("."), RasterExport.Format.PNG, dpi, 1);
+        PageFormat pf = pageFormat();
+        Result result = new Result();
+
+        for (int round = 0; round < warmup + rounds; round++) {
+            boolean timed = round >= warmup;
+            PrintableKeys[] sheets = sheets(name, keys);
+
+            for (int page = 0; page < pages; page++) {
+                long allocated = THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+                long start = System.nanoTime();
+                BufferedImage image = export.render(sheets[page], pf, page);
+                long time = System.nanoTime() - start;
+                allocated = THREADS.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocated;
+
+                check(name + "." + dpi + "dpi.p" + (page + 1), sha256(((DataBufferByte) image.getRaster().getDataBuffer()).getData()));
+                if (timed) {
+                    result.add(time, allocated, round == warmup ? pngSize(image) : 0);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    // Compiles and writes every page to one PostScript document; each page (the first includes the prolog) is hashed separately
+    private Result postScript(String name, String[][] keys) throws Exception {
+        Result result = new Result();
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+
+        for (int round = 0; round < warmup + rounds; round++) {
+            boolean timed = round >= warmup;
+            PrintableKeys[] sheets = sheets(name, keys);
+
+            long written = 0;
+            try (PostScriptWriter ps = new PostScriptWriter(new DigestOutputStream(OutputStream.nullOutputStream(), digest), pages)) {
+                for (int page = 0; page < pages; page++) {
+                    long allocated = THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+                    long start = System.nanoTime();
+                    ps.writePage(sheets[page].compile(page));
+                    long time = System.nanoTime() - start;
+                    allocated = THREADS.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocated;
+
+                    check(name + ".ps.p" + (page + 1), hex(digest.digest()));
+                    if (timed) {
+                        result.add(time, allocated, ps.getBytesWritten() - written);
+                    }
+                    written = ps.getBytesWritten();
+                }
+            }
+            digest.reset(); // The trailer is not part of any page
+        }
+
+        return result;
+    }
+
+    // Fresh sheets (nothing compiled or cached yet) holding the fixed test keys
+    private PrintableKeys[] sheets(String name, String[][] keys) {
+        PrintableKeys[] sheets = new PrintableKeys[pages];
+        for (int page = 0; page < pages; page++) {
+            PrintableKeys sheet;
+            if (name.equals("KS")) {
+                KSSheet ks = new KSSheet();
+                ks.timestamp = TIMESTAMP;
+                ks.random = new Random(page); // Same truncated addresses on every render
+                sheet = ks;
+            } else {
+                SCSheet sc = new SCSheet();
+                sc.timestamp = TIMESTAMP;
+                sc.satoshiAmount = SATOSHIS;
+                sheet = sc;
+            }
+
+            int total = sheet.getKeyTotal();
+            for (int i = 0; i < total; i++) {
+                sheet.setPrivateKey(keys[page * total + i][0], i + 1);
+                sheet.setPublicKey(keys[page * total + i][1], i + 1);
+            }
+            sheets[page] = sheet;
+        }
+
+        return sheets;
+    }
+
+    // WIF and address pairs for every slot; private key n is the SHA-256 of "<name>:<n>" (test keys only; never fund them)
+    private String[][] keys(String name, int perPage) throws Exception {
+        MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+        String[][] keys = new String[pages * perPage][];
+        for (int n = 0; n < keys.length; n++) {
+            KSKey key = new KSKey(sha256.digest((name + ":" + n).getBytes(StandardCharsets.US_ASCII)));
+            keys[n] = new String[] {key.getWIF(false), key.getP2WPKH("bc", 0)};
+        }
+
+        return keys;
+    }
+
+    private void check(String render, String hash) {
+        String key = environment + "." + render;
+        if (record) {
+            recorded.put(key, hash);
+            return;
+        }
+
+        String golden = goldens.getProperty(key);
+        if (golden == null) {
+            unchecked++;
+        } else if (!golden.equals(hash)) {
+            mismatches++;
+            System.out.println("  " + render + " differs from its golden hash (" + hash + ")");
+        }
+    }
+
+    // Prints one line of the table; the mismatch and unchecked counts from before the renders give their golden status
+    private void report(String name, String output, Result result, int previousMismatches, int previousUnchecked) {
+        String status = record ? "recorded" : mismatches > previousMismatches ? "DIFFERS" : unchecked > previousUnchecked ? "none" : "ok";
+        System.out.println(String.format("%-6s %-10s %12.2f %16.2f %16.1f  %s", name, output, result.pagesPerSecond(), result.allocatedPerPage() / 1e6, result.bytesPerPage() / 1e3, status));
+    }
+
+    // Keeps the goldens of other environments and replaces this one's
+    private void writeGoldens() throws IOException {
+        Map<String, String> all = new TreeMap<>();
+        for (String key : goldens.stringPropertyNames()) {
+            if (!key.startsWith(environment + ".")) all.put(key, goldens.getProperty(key));
+        }
+        all.putAll(recorded);
+
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(goldenFile), StandardCharsets.ISO_8859_1)) {
+            out.write("# Golden SHA-256 hashes of the RenderBenchmark pages (pixels for images, bytes for PostScript)\n");
+            out.write("# Key: <font family>.java<version>.<sheet>.<output>.p<page>; written by RenderBenchmark -record\n");
+            for (Map.Entry<String, String> entry : all.entrySet()) {
+                out.write(entry.getKey() + "=" + entry.getValue() + "\n");
+            }
+        }
+    }
+
+    private static long pngSize(BufferedImage image) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.size();
+    }
+
+    private static String sha256(byte[] data) throws Exception {
+        return hex(MessageDigest.getInstance("SHA-256").digest(data));
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    // Letter paper, landscape, no margins (the same page format the program prints with)
+    private static PageFormat pageFormat() {
+        Paper p = new Paper();
+        p.setSize(612, 792);
+        p.setImageableArea(0, 0, 612, 792);
+
+        PageFormat pf = new PageFormat();
+        pf.setPaper(p);
+        pf.setOrientation(PageFormat.LANDSCAPE);
+        return pf;
+    }
+
+    // Totals over the timed rounds
+    private static class Result {
+        long nanos;
+        long allocated;
+        long bytes;
+        int timedPages;
+        int bytesPages;
+
+        void add(long time, long allocatedBytes, long outputBytes) {
+            nanos += time;
+            allocated += allocatedBytes;
+            timedPages++;
+            if (outputBytes > 0) {
+                bytes += outputBytes;
+                bytesPages++;
+            }
+        }
+
+        double pagesPerSecond() {
+            return timedPages / (nanos / 1e9);
+        }
+
+        double allocatedPerPage() {
+            return (double) allocated / timedPages;
+        }
+
+        double bytesPerPage() {
+            return bytesPages == 0 ? 0 : (double) bytes / bytesPages;
+        }
+    }
+}
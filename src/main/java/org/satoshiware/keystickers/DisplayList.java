@@ -0,0 +1,423 @@
+/*
+ *      An immutable list of drawing operations (shapes, QR codes, and text runs)
+ *      that make up one printed sheet. Sheets compile their content into a
+ *      DisplayList once (QR encoding, text fitting, etc.) and every call to
+ *      print() simply replays it. This keeps the repeated print() calls made by
+ *      the java print system (banding, pre-pass, re-tries) cheap and identical.
+ *      Artwork that is the same on every page (frames, outlines, labels) is
+ *      built once into a template that the lists of all the pages share.
+ *
+ *      When the resolution of the device is known (DEVICERESOLUTION hint, or
+ *      the pixels of an image) QR modules and straight lines are snapped to
+ *      whole device pixels as they are replayed, so their edges are sharp and
+ *      every module is within one pixel of the same size.
+ *
+ *      This program is free software: you can redistribute it and/or modify
+ *      it under the terms of the GNU General Public License as published by
+ *      the Free Software Foundation, either version 3 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License
+ *      along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.satoshiware.keystickers;
+
+import com.google.zxing.common.BitMatrix;
+
+import java.awt.*;
+import java.awt.font.FontRenderContext;
+import java.awt.geom.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public final class DisplayList {
+    public static final FontRenderContext FRC = new FontRenderContext(null, false, false); // Used for all text measurements while compiling
+    public static QRMode QRMODE = QRMode.RUNS; // How QR codes are sent to a Graphics2D
+    public static boolean SNAP = true; // Snap QR modules and straight lines to whole device pixels when the device resolution is known
+    public static final RenderingHints.Key DEVICERESOLUTION = new ResolutionKey(); // Hint: dots per inch (Integer) of the printer the page goes to
+
+    // QR rendering modes. Both cover exactly the same pixels at the same size.
+    public enum QRMode {
+        MODULES, // One fillRect per dark module (largest spool files)
+        RUNS // One path per QR; each vertical run of dark modules is a single rectangle within that path
+    }
+
+    // What the operations after Builder.setPart() show; lets a verifier check each key slot on the rendered page (see SheetVerifier)
+    public enum Part {
+        NONE, // Anything else (frames, labels, amounts, etc.)
+        ADDRESS, // The slot's public address (QR code or text)
+        PRIVATEKEY // The slot's private key (QR code or text)
+    }
+
+    private final List<Op> ops;
+    private final List<DisplayList> templates; // Templates drawn by this list (in order of first use)
+    private final int resolution; // Units per inch of all the coordinates and sizes within this list
+
+    private DisplayList(List<Op> ops, List<DisplayList> templates, int resolution) {
+        this.ops = Collections.unmodifiableList(new ArrayList<>(ops));
+        this.templates = Collections.unmodifiableList(new ArrayList<>(templates));
+        this.resolution = resolution;
+    }
+
+    // Replays every operation onto the graphics context (snapped to its device pixels, if they are known)
+    public void replay(Graphics2D g) {
+        render(new GraphicsRenderer(g, resolution));
+    }
+
+    // Sends every operation, in order, to the renderer
+    public void render(Renderer r) {
+        for (Op op : ops) {
+            op.render(r);
+        }
+    }
+
+    public int size() {
+        return ops.size();
+    }
+
+    public int getResolution() {
+        return resolution;
+    }
+
+    // Templates (static artwork shared between pages) drawn by this list
+    public List<DisplayList> getTemplates() {
+        return templates;
+    }
+
+    // Receives the operations of a DisplayList
+    public interface Renderer {
+        void setColor(Color color);
+
+        void setStroke(Stroke stroke);
+
+        void draw(Shape shape); // Outline of the shape using the current stroke
+
+        void fill(Shape shape);
+
+        // QR code (dark modules set in the matrix) drawn "size" units wide and tall with its upper left corner at (x, y)
+        void drawQR(BitMatrix matrix, int x, int y, int size);
+
+        // Text run; the font carries the size and any rotation
+        void drawString(String text, Font font, int x, int y);
+
+        // Static artwork shared by many pages (frames, outlines, labels). It may change the color and stroke just like its own
+        // operations would. Renderers that can define it once and reuse it (e.g. a PostScript procedure) should do so.
+        void drawTemplate(DisplayList template);
+
+        // Marks what the following operations show and for which key slot (slot 0 with NONE = not key material). Drawing ignores it.
+        default void setPart(int slot, Part part) {
+        }
+    }
+
+    // Renders onto a java.awt.Graphics2D (printer, image, etc.)
+    public static class GraphicsRenderer implements Renderer {
+        private final Graphics2D g;
+
+        // Device pixels per unit along the list's x and y axes, and the device coordinate of unit 0 (0 per unit = not snapped)
+        private final double ax, bx, ay, by;
+        private double lineWidth; // Device pixels across the current stroke (0 = not snapped)
+        private boolean buttCap; // The current stroke ends exactly at its end points
+
+        // Draws exactly what it is given (nothing is snapped)
+        public GraphicsRenderer(Graphics2D g) {
+            this.g = g;
+            this.ax = this.bx = this.ay = this.by = 0;
+        }
+
+        // Snaps to the device pixels of the graphics context; "resolution" is the units per inch of the list being rendered
+        public GraphicsRenderer(Graphics2D g, int resolution) {
+            this.g = g;
+
+            AffineTransform device = SNAP ? getDeviceTransform(g, resolution) : null;
+            if (device == null) {
+                this.ax = this.bx = this.ay = this.by = 0;
+            } else if (Math.abs(device.getScaleX()) >= Math.abs(device.getShearY())) {
+                this.ax = device.getScaleX();
+                this.bx = device.getTranslateX();
+                this.ay = device.getScaleY();
+                this.by = device.getTranslateY();
+            } else { // Quarter turn: the list's x runs along the device's y and its y along the device's x
+                this.ax = device.getShearY();
+                this.bx = device.getTranslateY();
+                this.ay = device.getShearX();
+                this.by = device.getTranslateX();
+            }
+
+            if (ax != 0) {
+                g.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_PURE); // Already on the pixel grid
+            }
+        }
+
+        // Maps the units of the list to device pixels; null if the device's pixel grid is unknown
+        private static AffineTransform getDeviceTransform(Graphics2D g, int resolution) {
+            Object dpi = g.getRenderingHint(DEVICERESOLUTION);
+            if (dpi instanceof Integer) { // Pixels counted from the corner of the page, in the page's orientation
+                return AffineTransform.getScaleInstance((double) (Integer) dpi / resolution, (double) (Integer) dpi / resolution);
+            }
+
+            if (g.getDeviceConfiguration().getDevice().getType() == GraphicsDevice.TYPE_PRINTER) {
+                return null; // The print system's units need not be its pixels (e.g. PostScript points)
+            }
+
+            AffineTransform t = g.getTransform(); // Image or screen: its units are pixels
+            if ((t.getType() & (AffineTransform.TYPE_GENERAL_ROTATION | AffineTransform.TYPE_GENERAL_TRANSFORM)) != 0) {
+                return null;
+            }
+            return t;
+        }
+
+        public void setColor(Color color) {
+            g.setColor(color);
+        }
+
+        public void setStroke(Stroke stroke) {
+            lineWidth = 0;
+            if (ax != 0 && Math.abs(ax) == Math.abs(ay) && stroke instanceof BasicStroke) {
+                BasicStroke s = (BasicStroke) stroke;
+                lineWidth = Math.max(1, Math.rint(s.getLineWidth() * Math.abs(ax))); // Whole pixels; never thinner than one
+                buttCap = s.getEndCap() == BasicStroke.CAP_BUTT;
+                stroke = new BasicStroke((float) (lineWidth / Math.abs(ax)), s.getEndCap(), s.getLineJoin(), s.getMiterLimit(), s.getDashArray(), s.getDashPhase());
+            }
+            g.setStroke(stroke);
+        }
+
+        public void draw(Shape shape) {
+            if (lineWidth > 0 && shape instanceof Line2D) {
+                Line2D l = (Line2D) shape;
+                if (l.getX1() == l.getX2()) {
+                    double x = center(l.getX1(), ax, bx);
+                    shape = new Line2D.Double(x, end(l.getY1(), ay, by), x, end(l.getY2(), ay, by));
+                } else if (l.getY1() == l.getY2()) {
+                    double y = center(l.getY1(), ay, by);
+                    shape = new Line2D.Double(end(l.getX1(), ax, bx), y, end(l.getX2(), ax, bx), y);
+                }
+            }
+            g.draw(shape);
+        }
+
+        public void fill(Shape shape) {
+            g.fill(shape);
+        }
+
+        public void drawQR(BitMatrix m, int x, int y, int size) {
+            if (ax != 0) {
+                g.fill(qrSnapped(m, x, y, size));
+                return;
+            }
+
+            switch (QRMODE) {
+                case RUNS:
+                    g.fill(qrRuns(m, x, y, size));
+                    break;
+                default:
+                    qrModules(m, x, y, size);
+                    break;
+            }
+        }
+
+        // The same runs as qrRuns(), but every module edge is on a device pixel edge
+        private Path2D qrSnapped(BitMatrix m, int x, int y, int size) {
+            double[] xs = edges(x, size, m.getWidth(), ax, bx);
+            double[] ys = edges(y, size, m.getWidth(), ay, by);
+
+            Path2D path = new Path2D.Float(Path2D.WIND_NON_ZERO);
+            Rectangle2D.Double run = new Rectangle2D.Double();
+            for (int _x = 0; _x < m.getWidth(); _x++) {
+                int runTop = -1; // First module of the current run of dark modules (-1 = none)
+                for (int _y = 0; _y <= m.getWidth(); _y++) {
+                    boolean dark = _y < m.getWidth() && m.get(_x, _y);
+                    if (dark && runTop < 0) {
+                        runTop = _y;
+                    } else if (!dark && runTop >= 0) {
+                        run.setFrameFromDiagonal(xs[_x], ys[runTop], xs[_x + 1], ys[_y]);
+                        path.append(run, false);
+                        runTop = -1;
+                    }
+                }
+            }
+
+            return path;
+        }
+
+        // Module edges (in units) across a QR code; the device pixels it covers are shared out so modules differ by one at most
+        private static double[] edges(int start, int size, int modules, double scale, double offset) {
+            double first = Math.rint(scale * start + offset);
+            double span = Math.rint(scale * (start + size) + offset) - first; // Device pixels across (negative if the axis is flipped)
+
+            double[] edges = new double[modules + 1];
+            for (int i = 0; i <= modules; i++) {
+                edges[i] = (first + Math.rint(span * i / modules) - offset) / scale;
+            }
+            return edges;
+        }
+
+        // Moves a line's position so it covers whole pixels: centered on a pixel (odd widths) or on the edge between two (even)
+        private double center(double u, double scale, double offset) {
+            double d = scale * u + offset;
+            d = lineWidth % 2 == 1 ? Math.floor(d) + 0.5 : Math.rint(d);
+            return (d - offset) / scale;
+        }
+
+        // Moves a line's end point so the line (with its cap) ends on a pixel edge
+        private double end(double u, double scale, double offset) {
+            return buttCap ? (Math.rint(scale * u + offset) - offset) / scale : center(u, scale, offset);
+        }
+
+        private void qrModules(BitMatrix m, int x, int y, int size) {
+            int dotSize = size / m.getWidth(); // Integer division: the result is an integer and is truncated (fractional part thrown away). Not rounded to the closest integer.
+            double r = (double) (size % m.getWidth()) / (double) m.getWidth(); // Decimal remainder: used to help make the QR code the exact size.
+
+            int xPixelCount = 0;
+            int xPixel;
+            for (int _x = 0; _x < m.getWidth(); _x++) {
+                xPixel = (int) (r * (double) (_x + 1)) - (int) (r * (double) _x);
+                int yPixelCount = 0;
+                int yPixel;
+                for (int _y = 0; _y < m.getWidth(); _y++) {
+                    yPixel = (int) (r * (double) (_y + 1)) - (int) (r * (double) _y);
+                    if (m.get(_x, _y)) {
+                        g.fillRect(x + (_x * dotSize) + xPixelCount, y + (_y * dotSize) + yPixelCount, dotSize + xPixel, dotSize + yPixel);
+                    }
+                    yPixelCount = yPixelCount + yPixel;
+                }
+                xPixelCount = xPixelCount + xPixel;
+            }
+        }
+
+        public void drawString(String text, Font font, int x, int y) {
+            g.setFont(font);
+            g.drawString(text, x, y);
+        }
+
+        public void drawTemplate(DisplayList template) {
+            template.render(this);
+        }
+    }
+
+    // Single path covering the same rectangles as the MODULES mode; vertically adjacent dark modules are merged into one rectangle.
+    public static Path2D qrRuns(BitMatrix m, int x, int y, int size) {
+        int dotSize = size / m.getWidth(); // Whole units per module
+        double r = (double) (size % m.getWidth()) / (double) m.getWidth(); // Remainder spread over the modules so the QR code is the exact size
+
+        Path2D path = new Path2D.Float(Path2D.WIND_NON_ZERO);
+        int left = x;
+        for (int _x = 0; _x < m.getWidth(); _x++) {
+            int width = dotSize + (int) (r * (double) (_x + 1)) - (int) (r * (double) _x);
+            int top = y;
+            int runTop = y; // Top of the current run of dark modules
+            boolean inRun = false;
+            for (int _y = 0; _y < m.getWidth(); _y++) {
+                int height = dotSize + (int) (r * (double) (_y + 1)) - (int) (r * (double) _y);
+                if (m.get(_x, _y)) {
+                    if (!inRun) runTop = top;
+                    inRun = true;
+                } else if (inRun) {
+                    path.append(new Rectangle(left, runTop, width, top - runTop), false);
+                    inRun = false;
+                }
+                top += height;
+            }
+            if (inRun) {
+                path.append(new Rectangle(left, runTop, width, top - runTop), false);
+            }
+            left += width;
+        }
+
+        return path;
+    }
+
+    // Collects operations with the same calls (and coordinates) a sheet would otherwise make on a Graphics2D
+    public static class Builder {
+        private final List<Op> ops = new ArrayList<>();
+        private final List<DisplayList> templates = new ArrayList<>();
+        private final int resolution;
+
+        public Builder(int resolution) {
+            this.resolution = resolution;
+        }
+
+        public void setColor(Color color) {
+            ops.add(r -> r.setColor(color));
+        }
+
+        public void setStroke(Stroke stroke) {
+            ops.add(r -> r.setStroke(stroke));
+        }
+
+        public void drawLine(int x1, int y1, int x2, int y2) {
+            draw(new Line2D.Float(x1, y1, x2, y2));
+        }
+
+        public void drawOval(int x, int y, int width, int height) {
+            draw(new Ellipse2D.Float(x, y, width, height));
+        }
+
+        public void fillOval(int x, int y, int width, int height) {
+            fill(new Ellipse2D.Float(x, y, width, height));
+        }
+
+        public void drawArc(int x, int y, int width, int height, int startAngle, int arcAngle) {
+            draw(new Arc2D.Float(x, y, width, height, startAngle, arcAngle, Arc2D.OPEN));
+        }
+
+        public void draw(Shape shape) {
+            ops.add(r -> r.draw(shape));
+        }
+
+        public void fill(Shape shape) {
+            ops.add(r -> r.fill(shape));
+        }
+
+        public void drawQR(BitMatrix matrix, int x, int y, int size) {
+            ops.add(r -> r.drawQR(matrix, x, y, size));
+        }
+
+        public void drawString(String text, Font font, int x, int y) {
+            ops.add(r -> r.drawString(text, font, x, y));
+        }
+
+        public void setPart(int slot, Part part) {
+            ops.add(r -> r.setPart(slot, part));
+        }
+
+        // Draws a template built (once) with its own Builder; it must have the same resolution
+        public void drawTemplate(DisplayList template) {
+            if (template.resolution != resolution) {
+                throw new IllegalArgumentException("The template's resolution (" + template.resolution + ") does not match " + resolution);
+            }
+
+            if (!templates.contains(template)) templates.add(template);
+            ops.add(r -> r.drawTemplate(template));
+        }
+
+        public FontRenderContext getFontRenderContext() {
+            return FRC;
+        }
+
+        public DisplayList build() {
+            return new DisplayList(ops, templates, resolution);
+        }
+    }
+
+    // A single recorded drawing operation
+    private interface Op {
+        void render(Renderer r);
+    }
+
+    // Key of the DEVICERESOLUTION hint
+    private static class ResolutionKey extends RenderingHints.Key {
+        private ResolutionKey() {
+            super(0x4B53); // Any number; it only has to be unique within this class
+        }
+
+        public boolean isCompatibleValue(Object value) {
+            return value instanceof Integer && (Integer) value > 0;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ *      Funding manifest: one CSV line per sticker (or coin) with its public
+ *      address, the amount to send to it, and a label naming the product, page,
+ *      slot, and network. It is written while the sheets are handed to the
+ *      printer (or file), so it always matches what has been output (in page
+ *      order, except when several printers share the job). The columns are
+ *      "address,amount,label" with the amount in BTC, the layout wallets load
+ *      for a batched (send to many) transaction, e.g.:
+ *
+ *          address,amount,label
+ *          bc1q...,0.01000000,satoshicoins page 1 slot 1 mainnet 1000000 sats
+ *
+ *      Keystickers have no fixed amount, so their amount column is left blank.
+ *      A slot whose private key could not be printed in full (marked VOID on
+ *      the sheet) is left out entirely, so it can never be funded by mistake;
+ *      such slots are only counted (see getVoidCount).
+ *      Only public data is ever written; private keys never leave the sheets.
+ *      Lines are buffered and flushed every FLUSHPAGES pages.
+ *
+ *      This program is free software: you can redistribute it and/or modify
+ *      it under the terms of the GNU General Public License as published by
+ *      the Free Software Foundation, either version 3 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License
+ *      along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.satoshiware.keystickers;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+
+public class FundingManifest implements Closeable {
+    public static int BUFFERSIZE = 1 << 16; // Characters buffered before they are written to the file
+    public static int FLUSHPAGES = 50; // Pages recorded between flushes
+
+    private final Writer out;
+    private final String product; // First word of each label (e.g. "keystickers" or "satoshicoins")
+    private final String network; // Network name in each label, from the address prefix
+    private final long satoshis; // Amount for each address (0 = none)
+    private final String amount; // The same amount in BTC as written in the amount column ("" = none)
+
+    private int pages; // Pages recorded so far
+    private long addresses; // Addresses recorded so far
+    private long voided; // VOID slots left out so far
+    private IOException error; // First write error; reported by close()
+
+    public FundingManifest(OutputStream out, String product, String hrp, long satoshis) throws IOException {
+        if (satoshis < 0) {
+            throw new IllegalArgumentException("FundingManifest requires a non-negative amount");
+        }
+
+        this.out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.US_ASCII), BUFFERSIZE);
+        this.product = product;
+        this.network = getNetwork(hrp);
+        this.satoshis = satoshis;
+        this.amount = satoshis == 0 ? "" : BigDecimal.valueOf(satoshis, 8).toPlainString();
+
+        this.out.write("address,amount,label\n");
+    }
+
+    // Appends a line for each key slot of the sheet (page index starts at 0) except VOID ones. Write errors are held until close().
+    public synchronized void write(int page, PrintableKeys sheet) {
+        if (error != null) return;
+
+        try {
+            for (int i = 1; i <= sheet.getKeyTotal(); i++) {
+                if (sheet.isVoid(i)) { // Its private key is not on the sheet; funding it would lose the coins
+                    voided++;
+                    continue;
+                }
+
+                out.write(sheet.getPublicKey(i));
+                out.write(',');
+                out.write(amount);
+                out.write(',');
+                out.write(product + " page " + (page + 1) + " slot " + i + " " + network + (satoshis == 0 ? "" : " " + satoshis + " sats"));
+                out.write('\n');
+                addresses++;
+            }
+
+            if (++pages % FLUSHPAGES == 0) {
+                out.flush();
+            }
+        } catch (IOException e) {
+            error = e;
+        }
+    }
+
+    public synchronized int getPageCount() {
+        return pages;
+    }
+
+    public synchronized long getAddressCount() {
+        return addresses;
+    }
+
+    // VOID slots (never funded) left out of the manifest
+    public synchronized long getVoidCount() {
+        return voided;
+    }
+
+    // Total amount (satoshis) to fund every address recorded
+    public synchronized long getTotalAmount() {
+        return addresses * satoshis;
+    }
+
+    // Flushes and closes the file; throws the first error from any write
+    public synchronized void close() throws IOException {
+        try {
+            out.close();
+        } catch (IOException e) {
+            if (error == null) error = e;
+        }
+
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private static String getNetwork(String hrp) {
+        switch (hrp.toLowerCase()) {
+            case "bc":
+                return "mainnet";
+            case "tb":
+                return "testnet";
+            case "bcrt":
+                return "regtest";
+            default:
+                return hrp.toLowerCase();
+        }
+    }
+}
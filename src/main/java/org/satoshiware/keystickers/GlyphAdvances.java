@@ -0,0 +1,158 @@
+/*
+ *      Advance widths of the printable ASCII characters (which covers every
+ *      Base58, Bech32, and WIF character) and the bullet that marks private
+ *      keys, for one font at one size. Text that only uses these characters
+ *      is measured by adding up its advances, so fitting text to a width is a
+ *      single pass that allocates nothing.
+ *
+ *      The table is only trusted if adding up the advances gives the same
+ *      width as laying out the whole string (i.e. the font applies no kerning
+ *      or ligatures). Otherwise, or for any other character, the text is
+ *      measured the slow (exact) way with Font.getStringBounds.
+ *
+ *      This program is free software: you can redistribute it and/or modify
+ *      it under the terms of the GNU General Public License as published by
+ *      the Free Software Foundation, either version 3 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License
+ *      along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.satoshiware.keystickers;
+
+import java.awt.Font;
+
+public final class GlyphAdvances {
+    private static final char FIRST = 32; // Range of characters held in the table (printable ASCII)
+    private static final char LAST = 126;
+    private static final String EXTRA = "\u2022"; // Other characters held in the table (after LAST): the bullet
+
+    private final Font font;
+    private final float[] advances = new float[LAST + 1 + EXTRA.length()];
+    private final boolean additive; // True if the width of a string is exactly the sum of its advances
+
+    public GlyphAdvances(Font font) {
+        this.font = font;
+
+        StringBuilder all = new StringBuilder();
+        float sum = 0;
+        for (char c = FIRST; c <= LAST; c++) {
+            all.append(c);
+        }
+        all.append(EXTRA);
+
+        for (int i = 0; i < all.length(); i++) {
+            char c = all.charAt(i);
+            advances[index(c)] = (float) font.getStringBounds(String.valueOf(c), DisplayList.FRC).getWidth();
+            sum += advances[index(c)];
+        }
+
+        additive = Math.abs(sum - font.getStringBounds(all.toString(), DisplayList.FRC).getWidth()) < 0.01;
+    }
+
+    // Width of the text (rounded to the nearest unit)
+    public int stringWidth(String text) {
+        return stringWidth(text, 0, text.length());
+    }
+
+    // Width of the characters from begin (inclusive) to end (exclusive), rounded to the nearest unit
+    public int stringWidth(String text, int begin, int end) {
+        if (!covers(text, begin, end)) {
+            return round(font.getStringBounds(text, begin, end, DisplayList.FRC).getWidth());
+        }
+
+        float width = 0;
+        for (int i = begin; i < end; i++) {
+            width += advances[index(text.charAt(i))];
+        }
+
+        return round(width);
+    }
+
+    // Largest end (begin <= end <= text.length()) where the characters from begin to end, followed by the suffix, are narrower than the limit.
+    // Returns begin if nothing fits (not even the suffix on its own).
+    public int fit(String text, int begin, String suffix, int limit) {
+        if (!covers(text, begin, text.length()) || !covers(suffix, 0, suffix.length())) {
+            int end = begin;
+            while (end < text.length() && round(font.getStringBounds(text.substring(begin, end + 1) + suffix, DisplayList.FRC).getWidth()) < limit)
+                end++;
+            return end;
+        }
+
+        float width = 0;
+        for (int i = 0; i < suffix.length(); i++) {
+            width += advances[index(suffix.charAt(i))];
+        }
+
+        int end = begin;
+        while (end < text.length() && round(width + advances[index(text.charAt(end))]) < limit) {
+            width += advances[index(text.charAt(end))];
+            end++;
+        }
+
+        return end;
+    }
+
+    // Smallest begin (0 <= begin <= text.length()) where the characters from begin to the end of the text are narrower than the limit
+    public int fitEnd(String text, int limit) {
+        return fitEnd("", text, limit);
+    }
+
+    // Smallest begin (0 <= begin <= text.length()) where the prefix, followed by the characters from begin to the end of the text, is narrower than the limit
+    public int fitEnd(String prefix, String text, int limit) {
+        if (!covers(text, 0, text.length()) || !covers(prefix, 0, prefix.length())) {
+            int begin = 0;
+            while (begin < text.length() && round(font.getStringBounds(prefix + text.substring(begin), DisplayList.FRC).getWidth()) >= limit)
+                begin++;
+            return begin;
+        }
+
+        float width = 0;
+        for (int i = 0; i < prefix.length(); i++) {
+            width += advances[index(prefix.charAt(i))];
+        }
+        for (int i = 0; i < text.length(); i++) {
+            width += advances[index(text.charAt(i))];
+        }
+
+        int begin = 0;
+        while (begin < text.length() && round(width) >= limit) {
+            width -= advances[index(text.charAt(begin))];
+            begin++;
+        }
+
+        return begin;
+    }
+
+    public Font getFont() {
+        return font;
+    }
+
+    // True if the table alone can measure these characters
+    private boolean covers(String text, int begin, int end) {
+        if (!additive) return false;
+
+        for (int i = begin; i < end; i++) {
+            if (index(text.charAt(i)) < 0) return false;
+        }
+
+        return true;
+    }
+
+    // Position of the character within the table (-1 = not in the table)
+    private static int index(char c) {
+        if (c >= FIRST && c <= LAST) return c;
+
+        int i = EXTRA.indexOf(c);
+        return i < 0 ? -1 : LAST + 1 + i;
+    }
+
+    private static int round(double width) {
+        return (int) (0.5 + width);
+    }
+}
@@ -1,7 +1,15 @@
 /*
  *      This class checks the integrity of all the external jar dependencies.
  *      Each jar file is read, checksum (SHA-256) calculated, and then compared
- *      with the hardcoded values within this class (jarFiles() routine).
+ *      with the expected values in the libraries.sha256 manifest embedded in
+ *      the keystickers jar (so they are covered by the jar's own checksum).
+ *      The files are hashed in parallel with large block reads, and the read
+ *      speed (MB/s) of each one is reported.
+ *
+ *      The running keystickers jar is checked too. It cannot hold its own
+ *      checksum, so it is compared with the "keystickers-$REV.jar.sha256" file
+ *      next to it (sha256sum format), if there is one; otherwise its checksum
+ *      is displayed to be compared with the published one.
  *
  *******************************************************************************
  *      This program is free software: you can redistribute it and/or modify
@@ -19,33 +27,55 @@
  */
 package org.satoshiware.keystickers;
 
-import java.io.FileInputStream;
-import java.io.IOException;
-
-import java.security.DigestInputStream;
+import java.io.*;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class JarChecksums {
+    public static String MANIFEST = "libraries.sha256"; // Resource (next to this class) with the expected checksum of each library
+    public static int BUFFERSIZE = 1 << 20; // Bytes read from a file at a time
+
     public static boolean run(String filepath) {
         if(filepath == null) return false;
 
         System.out.println("Verifying the checksum (SHA-256) of each external library in the directory \"" + filepath + "\"");
 
-        boolean valid = true;
+        boolean valid;
         try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            List<Library> libraries = loadManifest();
+
+            long start = System.nanoTime();
+            List<Result> results = checksums(filepath, libraries);
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            valid = true;
+            long total = 0;
+            for (int i = 0; i < libraries.size(); i++) {
+                Library library = libraries.get(i);
+                Result result = results.get(i);
+                boolean match = result.checksum.equals(library.checksum);
+
+                System.out.println(String.format("    %-28s%s\t%s\t%7.1f MB/s\t%s", library.file, result.checksum, match ? "Valid    " : "NOT Valid", result.mbPerSecond(), library.description));
+                valid &= match;
+                total += result.bytes;
+            }
+            System.out.println(String.format("    %d libraries (%,d bytes) checked in %.2f s (%.1f MB/s)", libraries.size(), total, seconds, total / 1e6 / seconds));
 
-            int index = 1;
-            while(jarFiles(index, "file") != null) { // Get the total number of external jar files to check
-                String chksm = checksum(filepath + System.getProperty("file.separator") + jarFiles(index, "file"), md);
-                System.out.println("    " + jarFiles(index, "file") + jarFiles(index, "spacing") + chksm + (chksm.equals(jarFiles(index, "checksum")) ? "\tValid    \t" : "\tNOT Valid\t") + jarFiles(index, "description"));
-                valid &= chksm.equals(jarFiles(index, "checksum"));
+            valid &= checkRunningJar();
 
-                index++;
+            if(valid) {
+                System.out.println("Success! External libraries have NOT been tampered!\n");
             }
-
-            System.out.println("Success! External libraries have NOT been tampered!\n");
             System.out.println("Remember to verify the Open JDK (version 19.0.2) install file checksums (SHA-256):");
             System.out.println("\topenjdk-19.0.2_linux-aarch64_bin.tar.gz        95728187b4b5607c49de751a209ecda6e04d9ed7cee603cf36f454239106527b");
             System.out.println("\topenjdk-19.0.2_linux-x64_bin.tar.gz            34cf8d095cc071e9e10165f5c45023f96ec68397fdaabf6c64bfec1ffeee6198");
@@ -55,9 +85,6 @@ public class JarChecksums {
         }catch (IOException e) {
             System.out.println("\nERROR! IO exception accessing and reading the libraries!\n" + e.getMessage());
             return false;
-        }catch (NoSuchAlgorithmException e) {
-            System.out.println("ERROR! SHA-256 routine is not available!");
-            return false;
         }
 
         if(valid) {
@@ -68,58 +95,84 @@ public class JarChecksums {
         }
     }
 
-    private static String jarFiles(int index, String item) {
-        String file;
-        int spacing = 12;
-        String checksum;
-        String description;
-
-        switch (index) {
-            case 1:     file = "bitcoinj-core-0.14.7.jar";      spacing -= 4;   checksum = "e4f4962df63919194c58c628dec7464f626cd5776157f1e64a7441408eb507d8";  description = "org.bitcoinj.core 0.14.7 (Bitcoin implementation in java)"; break;
-            case 2:     file = "slf4j-api-1.7.20.jar";          spacing += 0;   checksum = "2967c337180f6dca88a8a6140495b9f0b8a85b8527d02b0089bdbf9cdb34d40b";  description = "    -> BitcoinJ transitive dependency (1/10)"; break;
-            case 3:     file = "scrypt-1.4.0.jar";              spacing += 4;   checksum = "9a82d218099fb14c10c0e86e7eefeebd8c104de920acdc47b8b4b7a686fb73b4";  description = "    -> BitcoinJ transitive dependency (2/10)"; break;
-            case 4:     file = "protobuf-java-2.6.1.jar";       spacing -= 3;   checksum = "55aa554843983f431df5616112cf688d38aa17c132357afd1c109435bfdac4e6";  description = "    -> BitcoinJ transitive dependency (3/10)"; break;
-            case 5:     file = "orchid-1.2.1.jar";              spacing += 4;   checksum = "f836325cfa0466a011cb755c9b0fee6368487a2352eb45f4306ad9e4c18de080";  description = "    -> BitcoinJ transitive dependency (4/10)"; break;
-            case 6:     file = "okio-1.6.0.jar";                spacing += 6;   checksum = "114bdc1f47338a68bcbc95abf2f5cdc72beeec91812f2fcd7b521c1937876266";  description = "    -> BitcoinJ transitive dependency (5/10)"; break;
-            case 7:     file = "okhttp-2.7.2.jar";              spacing += 4;   checksum = "b4c943138fcef2bcc9d2006b2250c4aabbedeafc5947ed7c0af7fd103ceb2707";  description = "    -> BitcoinJ transitive dependency (6/10)"; break;
-            case 8:     file = "jsr305-2.0.1.jar";              spacing += 4;   checksum = "1e7f53fa5b8b5c807e986ba335665da03f18d660802d8bf061823089d1bee468";  description = "    -> BitcoinJ transitive dependency (7/10)"; break;
-            case 9:     file = "jcip-annotations-1.0.jar";      spacing -= 4;   checksum = "be5805392060c71474bf6c9a67a099471274d30b83eef84bfc4e0889a4f1dcc0";  description = "    -> BitcoinJ transitive dependency (8/10)"; break;
-            case 10:    file = "guava-18.0.jar";                spacing += 6;   checksum = "d664fbfc03d2e5ce9cab2a44fb01f1d0bf9dfebeccc1a473b1f9ea31f79f6f99";  description = "    -> BitcoinJ transitive dependency (9/10)"; break;
-            case 11:    file = "core-1.51.0.0.jar";             spacing += 3;   checksum = "8d6240b974b0aca4d3da9c7dd44d42339d8a374358aca5fc98e50a995764511f";  description = "    -> BitcoinJ transitive dependency (10/10)"; break;
-            case 12:    file = "core-3.3.3.jar";                spacing += 6;   checksum = "5820f81e943e4bce0329306621e2d6255d2930b0a6ce934c5c23c0d6d3f20599";  description = "com.google.zxing 3.3.3 (QR encoding)"; break;
-            case 13:    file = "bccontrib-1.0.jar";             spacing += 3;   checksum = "cd5514068306262ce35c25122d75ddcfc406a672a0b41a8ef267201d94784cc3";  description = "org.jitsi.bccontrib 1.0 (Fortuna CSPRNG)"; break;
-            case 14:    file = "bcprov-jdk15on-1.48.jar";       spacing -= 3;   checksum = "804b7e2e3b9ac771dfd3b43de16666ac6008f8600f48f28ddc94e39a114e2288";  description = "    -> Fortuna transitive dependency (1/1)"; break;
-            case 15:    file = "slf4j-jdk14-1.7.12.jar";        spacing -= 2;   checksum = "a13362d9865740511ab35e4181e6821c4876d92fa770bfcc37e96086d924f75c";  description = "Simple Logging Facade for Java (SLF4J.org) JDK"; break;
-            
-            default:    file = null;                            spacing = -1;   checksum = null;                                                                description = null; break;
+    // Hashes every library in the directory at the same time (one thread per core). The results are in the same order as the libraries.
+    private static List<Result> checksums(String filepath, List<Library> libraries) throws IOException {
+        final AtomicInteger index = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(libraries.size(), Runtime.getRuntime().availableProcessors())), r -> {
+            Thread t = new Thread(r, "JarChecksums-" + index.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+        try {
+            List<Future<Result>> futures = new ArrayList<>();
+            for (Library library : libraries) {
+                futures.add(executor.submit(() -> checksum(new File(filepath, library.file))));
+            }
+
+            List<Result> results = new ArrayList<>();
+            for (Future<Result> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Verification was interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        } finally {
+            executor.shutdownNow();
         }
+    }
 
-        switch (item) {
-            case "file":
-                return file;
-            case "checksum":
-                return checksum;
-            case "spacing":
-                if (spacing == -1) return null;
-
-                StringBuilder s = new StringBuilder();
-                for (int i = 0; i < spacing; i++) {
-                    s.append(" ");
-                }
+    // Compares the running keystickers jar with its .sha256 file (if any). Returns false only if the checksums do not match.
+    private static boolean checkRunningJar() throws IOException {
+        File jar;
+        try {
+            jar = new File(JarChecksums.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (URISyntaxException | SecurityException | NullPointerException e) {
+            System.out.println("    Unable to locate the running keystickers jar; it was not checked");
+            return true;
+        }
+        if (!jar.isFile()) {
+            System.out.println("    Not running from a jar file (\"" + jar + "\"); the keystickers jar was not checked");
+            return true;
+        }
 
-                return s.toString();
-            case "description":
-                return description;
-            default:
-                return null;
+        Result result = checksum(jar);
+        File sidecar = new File(jar.getPath() + ".sha256");
+        if (!sidecar.isFile()) {
+            System.out.println(String.format("    %-28s%s\t%s\t%7.1f MB/s\tCompare with the published checksum (no %s file)", jar.getName(), result.checksum, "Unknown  ", result.mbPerSecond(), sidecar.getName()));
+            return true;
         }
+
+        String expected = new String(Files.readAllBytes(sidecar.toPath()), StandardCharsets.US_ASCII).trim().split("\\s+")[0].toLowerCase();
+        boolean match = result.checksum.equals(expected);
+        System.out.println(String.format("    %-28s%s\t%s\t%7.1f MB/s\tKeystickers (checked against %s)", jar.getName(), result.checksum, match ? "Valid    " : "NOT Valid", result.mbPerSecond(), sidecar.getName()));
+        return match;
     }
 
-    private static String checksum(String filepath, MessageDigest md) throws IOException {
-        // file hashing with DigestInputStream
-        try (DigestInputStream dis = new DigestInputStream(new FileInputStream(filepath), md)) {
-            while (dis.read() != -1) ; //empty loop to clear the data
-            md = dis.getMessageDigest();
+    private static Result checksum(File file) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 routine is not available!", e);
+        }
+
+        long start = System.nanoTime();
+        long bytes = 0;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFERSIZE);
+            int n;
+            while ((n = channel.read(buffer)) != -1) {
+                md.update(buffer.array(), 0, n);
+                bytes += n;
+                buffer.clear();
+            }
+        } catch (FileNotFoundException | java.nio.file.NoSuchFileException e) {
+            throw new IOException("Missing library: " + file, e);
         }
 
         // bytes to hex
@@ -127,6 +180,59 @@ public class JarChecksums {
         for (byte b : md.digest()) {
             result.append(String.format("%02x", b));
         }
-        return result.toString();
+        return new Result(result.toString(), bytes, System.nanoTime() - start);
+    }
+
+    // Reads the embedded manifest; each line is "<sha256>  <file>  <description>" (blank lines and lines starting with # are skipped)
+    private static List<Library> loadManifest() throws IOException {
+        InputStream in = JarChecksums.class.getResourceAsStream(MANIFEST);
+        if (in == null) {
+            throw new IOException("The checksum manifest (" + MANIFEST + ") is missing from the keystickers jar");
+        }
+
+        List<Library> libraries = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+
+                String[] fields = line.split("\\s+", 3);
+                if (fields.length < 2 || !fields[0].matches("[0-9a-f]{64}")) {
+                    throw new IOException("Invalid line in the checksum manifest: " + line);
+                }
+                libraries.add(new Library(fields[1], fields[0], fields.length == 3 ? (fields[2].startsWith("->") ? "    " : "") + fields[2] : ""));
+            }
+        }
+
+        return libraries;
+    }
+
+    private static class Library {
+        final String file;
+        final String checksum;
+        final String description;
+
+        Library(String file, String checksum, String description) {
+            this.file = file;
+            this.checksum = checksum;
+            this.description = description;
+        }
+    }
+
+    private static class Result {
+        final String checksum;
+        final long bytes;
+        final long nanos;
+
+        Result(String checksum, long bytes, long nanos) {
+            this.checksum = checksum;
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+
+        double mbPerSecond() {
+            return nanos == 0 ? 0 : bytes / 1e6 / (nanos / 1e9);
+        }
     }
-}
\ No newline at end of file
+}
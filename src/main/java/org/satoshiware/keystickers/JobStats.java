@@ -0,0 +1,238 @@
+/*
+ *      Process-wide timing and counters for each stage of a job: mixing the
+ *      keyboard entropy, filling the random bytes, deriving the keys, encoding
+ *      them, compiling and rendering the sheets, waiting for keys, spooling
+ *      the output, and verifying the sheets. Stage times are the busy time
+ *      summed over every thread that ran the stage (the key stages run on
+ *      several threads at once), so they show where the work goes rather than
+ *      adding up to the wall clock time.
+ *
+ *      Each stage is also committed as a JDK Flight Recorder event
+ *      ("org.satoshiware.keystickers.Stage") with its page and item count, so a
+ *      slow run can be examined in detail (e.g. java -XX:StartFlightRecording
+ *      =filename=keystickers.jfr -jar keystickers.jar -k). When no recording is
+ *      running the events cost next to nothing.
+ *
+ *      At the end of a job the summary is printed. If LOGFILE is set (or the
+ *      keystickers.stats system property, e.g. -Dkeystickers.stats=stats.csv),
+ *      it is also appended to that CSV file for tracking trends between runs.
+ *      A new header line is written whenever the columns change (e.g. a stage
+ *      is added), so each line can be read by the header above it.
+ *      No keys or addresses are ever recorded.
+ *
+ *      This program is free software: you can redistribute it and/or modify
+ *      it under the terms of the GNU General Public License as published by
+ *      the Free Software Foundation, either version 3 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License
+ *      along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.satoshiware.keystickers;
+
+import jdk.jfr.*;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+public final class JobStats {
+    public static String LOGFILE = System.getProperty("keystickers.stats"); // CSV file each job summary is appended to (null = none)
+
+    public enum Stage {
+        ENTROPY("entropy", "bytes"), // Mixing the typed text into the keyboard entropy seed
+        RANDOM("random", "keys"), // Filling private keys from the mixed random sources
+        DERIVE("derive", "keys"), // Public keys and their hashes
+        ENCODE("encode", "keys"), // WIF private keys and Bech32 addresses
+        COMPILE("compile", "pages"), // Building each sheet's display list
+        RENDER("render", "renders"), // Replaying the display lists (to the printer, an image, or PostScript); the printer may ask for a page more than once
+        WAIT("wait", "stalls"), // Output stalled waiting for a sheet's keys
+        SPOOL("spool", "pages"), // Writing the output (image files, or the whole print job)
+        VERIFY("verify", "pages"); // Scanning back each compiled sheet before it is output
+
+        private final String label;
+        private final String unit;
+
+        Stage(String label, String unit) {
+            this.label = label;
+            this.unit = unit;
+        }
+    }
+
+    private static final LongAdder[] nanos = new LongAdder[Stage.values().length];
+    private static final LongAdder[] items = new LongAdder[Stage.values().length];
+    private static final LongAdder bytes = new LongAdder(); // Bytes of output spooled
+    private static final AtomicLong jobStart = new AtomicLong(); // Wall clock start of the job (0 = not started)
+
+    static {
+        for (int i = 0; i < nanos.length; i++) {
+            nanos[i] = new LongAdder();
+            items[i] = new LongAdder();
+        }
+    }
+
+    @Name("org.satoshiware.keystickers.Stage")
+    @Label("Keystickers Stage")
+    @Category("Keystickers")
+    @Description("One unit of work in a stage of the key generation and printing pipeline")
+    @StackTrace(false)
+    public static final class StageEvent extends Event {
+        @Label("Stage")
+        String stage;
+
+        @Label("Page")
+        @Description("Page index (-1 = not for a particular page)")
+        int page;
+
+        @Label("Items")
+        @Description("Number of keys, pages, or bytes handled")
+        long items;
+
+        transient Stage type;
+        transient long startNanos;
+    }
+
+    private JobStats() {
+    }
+
+    // Starts timing a unit of work in the stage; finish it with end()
+    public static StageEvent begin(Stage stage, int page) {
+        StageEvent event = new StageEvent();
+        event.type = stage;
+        event.page = page;
+        event.startNanos = System.nanoTime();
+        event.begin();
+        return event;
+    }
+
+    // Adds the unit of work to its stage's totals and commits its event (if a recording wants it)
+    public static void end(StageEvent event, long count) {
+        nanos[event.type.ordinal()].add(System.nanoTime() - event.startNanos);
+        items[event.type.ordinal()].add(count);
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.stage = event.type.label;
+            event.items = count;
+            event.commit();
+        }
+    }
+
+    public static void addBytes(long count) {
+        bytes.add(count);
+    }
+
+    // Marks the start of the job (the wall clock and the heap peak). Stage totals from before (e.g. entropy) are kept.
+    public static void startJob() {
+        jobStart.set(System.nanoTime());
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) pool.resetPeakUsage();
+        }
+    }
+
+    public static long getNanos(Stage stage) {
+        return nanos[stage.ordinal()].sum();
+    }
+
+    public static long getItems(Stage stage) {
+        return items[stage.ordinal()].sum();
+    }
+
+    public static long getBytes() {
+        return bytes.sum();
+    }
+
+    // Wall clock time since startJob()
+    public static long getElapsedNanos() {
+        return jobStart.get() == 0 ? 0 : System.nanoTime() - jobStart.get();
+    }
+
+    // Sum of the peak usage of each heap pool since startJob() (the pools may peak at different times, so this is an upper bound)
+    public static long getPeakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) peak += pool.getPeakUsage().getUsed();
+        }
+        return peak;
+    }
+
+    // Human readable report of the job: wall time, throughput, output, peak heap, and the busy time of every stage used
+    public static String getSummary(String job) {
+        double seconds = getElapsedNanos() / 1e9;
+        long keys = getItems(Stage.DERIVE);
+        long pages = getItems(Stage.COMPILE);
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Job summary (%s): %,d pages and %,d keys in %.2f s; %,.1f keys/sec, %.2f pages/sec; %,d bytes spooled; peak heap %,d MB%n",
+                job, pages, keys, seconds, rate(keys, seconds), rate(pages, seconds), getBytes(), getPeakHeap() >> 20));
+        sb.append(String.format("    %-8s %10s %16s %14s%n", "Stage", "Busy (s)", "Items", "Items/sec"));
+        for (Stage stage : Stage.values()) {
+            if (getItems(stage) == 0 && getNanos(stage) == 0) continue;
+
+            double busy = getNanos(stage) / 1e9;
+            sb.append(String.format("    %-8s %10.3f %16s %14s%n", stage.label, busy, String.format("%,d %s", getItems(stage), stage.unit), String.format("%,.1f", rate(getItems(stage), busy))));
+        }
+
+        return sb.toString();
+    }
+
+    // Appends the job summary as one CSV line to LOGFILE (a header is written first if the file is new or was written with other columns). Does nothing if LOGFILE is not set.
+    public static void log(String job) {
+        if (LOGFILE == null || LOGFILE.isEmpty()) return;
+
+        StringBuilder columns = new StringBuilder("time,job,pages,keys,seconds,keys/sec,pages/sec,bytes,peak heap");
+        for (Stage stage : Stage.values()) {
+            columns.append(',').append(stage.label).append(" s");
+        }
+
+        File file = new File(LOGFILE);
+        boolean header = !columns.toString().equals(getHeader(file));
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8)) {
+            if (header) out.write(columns.append('\n').toString());
+
+            double seconds = getElapsedNanos() / 1e9;
+            StringBuilder sb = new StringBuilder();
+            sb.append(DateTimeFormatter.ISO_LOCAL_DATE_TIME.format(LocalDateTime.now().withNano(0))).append(',').append(job);
+            sb.append(',').append(getItems(Stage.COMPILE)).append(',').append(getItems(Stage.DERIVE));
+            sb.append(String.format(Locale.ROOT, ",%.3f,%.1f,%.3f", seconds, rate(getItems(Stage.DERIVE), seconds), rate(getItems(Stage.COMPILE), seconds)));
+            sb.append(',').append(getBytes()).append(',').append(getPeakHeap());
+            for (Stage stage : Stage.values()) {
+                sb.append(String.format(Locale.ROOT, ",%.3f", getNanos(stage) / 1e9));
+            }
+            out.write(sb.append('\n').toString());
+        } catch (IOException e) {
+            System.out.println("WARNING! Unable to append the job summary to \"" + LOGFILE + "\": " + e.getMessage());
+        }
+    }
+
+    // Last header line in the CSV file (null if the file does not exist, is empty, or cannot be read)
+    private static String getHeader(File file) {
+        if (!file.exists() || file.length() == 0) return null;
+
+        String header = null;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                if (line.startsWith("time,")) header = line;
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        return header;
+    }
+
+    private static double rate(long count, double seconds) {
+        return seconds <= 0 ? 0 : count / seconds;
+    }
+}
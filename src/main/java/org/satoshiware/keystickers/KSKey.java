@@ -19,6 +19,8 @@ package org.satoshiware.keystickers;
 
 import org.bitcoinj.core.*;
 
+import java.util.Arrays;
+
 public class KSKey {
     private final ECKey key;
 
@@ -31,8 +33,21 @@ public class KSKey {
         key = ECKey.fromPrivate(bytes);
     }
 
+    // Construct a KSKey from a private key and its (already derived) compressed public key; see KeyEngine
+    public KSKey(byte[] privateKey, byte[] publicKey) { // Constructor 2
+        if(privateKey.length != 32 || publicKey.length != 33) {
+            throw new IllegalArgumentException("KSKey constructor requires a 32 byte private key and a 33 byte compressed public key");
+        }
+
+        key = ECKey.fromPrivateAndPrecalculatedPublic(privateKey, publicKey);
+    }
+
     // Returns native segwit public address (bech32) encoded with the "version" number
     public String getP2WPKH(String hrp, int version) {
+        if (version == 0) {
+            return P2WPKHEncoder.forHrp(hrp).encode(key.getPubKeyHash());
+        }
+
         byte[] convertedBytes = Bech32.convertBits(key.getPubKeyHash(), 0, key.getPubKeyHash().length, 8, 5, true);
         byte[] bytes = new byte[1 + convertedBytes.length];
         bytes[0] = (byte) (Bech32.encodeToOpN(version) & 0xff);
@@ -40,11 +55,17 @@ public class KSKey {
         return Bech32.encode(hrp, bytes);
     }
 
-    public String getWIF(boolean testnet) {
-        if (testnet) {
-            return key.getPrivateKeyAsWiF(NetworkParameters.fromID(NetworkParameters.ID_TESTNET)); // Testnet Leading Symbol: c
-        }else {
-            return key.getPrivateKeyAsWiF(NetworkParameters.fromID(NetworkParameters.ID_MAINNET)); // Mainnet Leading Symbol: K or L
+    // Hash160 (RIPEMD-160 of SHA-256) of the compressed public key; the witness program of a P2WPKH address
+    public byte[] getPubKeyHash() {
+        return key.getPubKeyHash();
+    }
+
+    public String getWIF(boolean testnet) { // Leading Symbol: K or L (mainnet); c (testnet)
+        byte[] privateKey = key.getPrivKeyBytes();
+        try {
+            return new WIFEncoder(testnet).encode(privateKey);
+        } finally {
+            Arrays.fill(privateKey, (byte) 0);
         }
     }
 }
\ No newline at end of file
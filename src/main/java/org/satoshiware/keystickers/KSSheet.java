@@ -18,31 +18,22 @@
  */
 package org.satoshiware.keystickers;
 
-import com.google.zxing.BarcodeFormat;
 import com.google.zxing.common.BitMatrix;
-import com.google.zxing.EncodeHintType;
-import com.google.zxing.qrcode.QRCodeWriter;
 import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
 import com.google.zxing.WriterException;
 
 import java.awt.*;
-import java.awt.Font;
-import java.awt.font.LineMetrics;
-import java.awt.font.TextAttribute;
-import java.awt.geom.AffineTransform;
 import java.awt.print.PageFormat;
 import java.awt.print.PrinterException;
-import java.text.AttributedString;
 
 import java.time.format.DateTimeFormatter;
 import java.time.LocalDateTime;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class KSSheet implements PrintableKeys {
     private static final int PPL = 8; // Stroke width: Controls line thickness for frames and borders.
-    private static final String[] PREFERREDFONTS = {"Liberation Serif", "Times New Roman"}; // Fonts ordered by priority.
-    private static final int FStyle = Font.PLAIN; // Style of the font (Font.PLAIN, Font.BOLD, Font.ITALIC, (Font.BOLD + Font.ITALIC))
 
     private static final int PPI = 2400; // Minimum 600 PPI to maintain good quality
     private static final double MARGIN = 0.35; // Printing margin (Inches)
@@ -50,24 +41,18 @@ public class KSSheet implements PrintableKeys {
 
     public boolean stickerOutlines; // If true, the Keysticker Borders are drawn. Facilitates debug on regular paper.
     public float privateKeyGreyScale; // The grey scale color for the Private Key (0% - 100%).
+    public LocalDateTime timestamp; // Date and time written on the sheet (null = the time it is compiled). Fixed for reproducible renders.
+    public Random random; // Selects the part of each address shown when truncated (null = Math.random). Seeded for reproducible renders.
 
     private final String[] fullPubKeyStr = new String[KEYTOTAL]; // Stores the public keys for this sheet
     private final String[] fullPrivKeyStr = new String[KEYTOTAL]; // Stores the private keys for this sheet
 
-    private String thisFont; // Font used for this sheet
+    private static final Map<Boolean, DisplayList> templates = new ConcurrentHashMap<>(); // Static artwork of the sheet; keyed by stickerOutlines
 
-    public KSSheet() {
-        String[] fonts = GraphicsEnvironment.getLocalGraphicsEnvironment().getAvailableFontFamilyNames();
-        for(int j = 0; j < PREFERREDFONTS.length; j++) {
-            for(int i = 0; i < fonts.length; i++) {
-                if (fonts[i].equals(PREFERREDFONTS[j])) {
-                    thisFont = PREFERREDFONTS[j];
-                    j = PREFERREDFONTS.length;
-                    i = fonts.length;
-                }
-            }
-        }
+    private DisplayList displayList; // Compiled content of this sheet (null = not compiled yet)
+    private int compiledPage = -1; // Page index the display list was compiled for
 
+    public KSSheet() {
         stickerOutlines = false;
 
         privateKeyGreyScale = 0; // 0% is black
@@ -89,31 +74,53 @@ public class KSSheet implements PrintableKeys {
             throw new PrinterException("KSSheet Java Class: All Printing Margins must be less than " + MARGIN + "\"");
         }
 
+        DisplayList dl = compile(page);
+
+        JobStats.StageEvent event = JobStats.begin(JobStats.Stage.RENDER, page);
         g.scale ((double) 72 / PPI, (double) 72 / PPI); // Cheap hack to change graphic resolution. java.awt.print is fixed at 72 PPI.
+        dl.replay(g);
+        JobStats.end(event, 1);
 
-        // Draw frames around each Keystickers
-        drawFrame(g);
+        return PAGE_EXISTS;
+    }
 
-        // Draw Keysticker borders if enabled
-        if(stickerOutlines) {
-            drawKSOutline(g);
+    // Compiles the sheet (QR codes, fitted text, truncated addresses, etc.) into a display list for the page.
+    // The same list is returned for every call with the same page; changing a key discards it.
+    public synchronized DisplayList compile(int page) {
+        if (displayList == null || compiledPage != page) {
+            JobStats.StageEvent event = JobStats.begin(JobStats.Stage.COMPILE, page);
+            displayList = build(page);
+            compiledPage = page;
+            JobStats.end(event, 1);
         }
 
+        return displayList;
+    }
+
+    private DisplayList build(int page) {
+        DisplayList.Builder g = new DisplayList.Builder(PPI);
+
+        // Draw frames, Keysticker borders (if enabled), and sticker numbers
+        g.drawTemplate(getTemplate(stickerOutlines));
+
         // Write sheet details: "KEYSTICKERS", Page #, Date, and Time
-        String sheetDetails = "            KEYSTICKERS                     PAGE: " + (page + 1) + "                     " + DateTimeFormatter.ofPattern("MM/dd/yyyy                     HH:mm:ss").format(LocalDateTime.now());
-        drawString(g, sheetDetails, (int)(0.5375 * PPI), (int)(MARGIN * PPI), 90, -(int)getAscent(g, sheetDetails, (int)((0.5375 - MARGIN) * PPI)),0, (int) ((0.5375 - MARGIN) * PPI));
+        String sheetDetails = "            KEYSTICKERS                     PAGE: " + (page + 1) + "                     " + DateTimeFormatter.ofPattern("MM/dd/yyyy                     HH:mm:ss").format(timestamp != null ? timestamp : LocalDateTime.now());
+        drawString(g, sheetDetails, (int)(0.5375 * PPI), (int)(MARGIN * PPI), 90, -(int)getAscent((int)((0.5375 - MARGIN) * PPI)),0, (int) ((0.5375 - MARGIN) * PPI));
 
         // Draw Public Key QR codes
         try {
             for (int i = 0; i < 3; i++) {
                 for (int j = 0; j < 2; j++) {
-                    drawQR(g, new Point((int)((1.1875 + (3.4375 * i)) * PPI), (int)((1.1750 + (2.05 * j)) * PPI)), (int)(0.75 * PPI), fullPubKeyStr[i + (j * 3)], ErrorCorrectionLevel.M);
+                    g.setPart(1 + i + (j * 3), DisplayList.Part.ADDRESS);
+                    drawQR(g, new Point((int)((1.1875 + (3.4375 * i)) * PPI), (int)((1.1750 + (2.05 * j)) * PPI)), (int)(0.75 * PPI), QREncoder.encodeAddress(fullPubKeyStr[i + (j * 3)], ErrorCorrectionLevel.M));
 
-                    drawQR(g, new Point((int)((2.9375 + (3.4375 * i)) * PPI), (int)((5.2750 + (2.05 * j)) * PPI)), (int)(0.75 * PPI), fullPubKeyStr[6 + i + (j * 3)], ErrorCorrectionLevel.M);
+                    g.setPart(7 + i + (j * 3), DisplayList.Part.ADDRESS);
+                    drawQR(g, new Point((int)((2.9375 + (3.4375 * i)) * PPI), (int)((5.2750 + (2.05 * j)) * PPI)), (int)(0.75 * PPI), QREncoder.encodeAddress(fullPubKeyStr[6 + i + (j * 3)], ErrorCorrectionLevel.M));
                 }
             }
         } catch (WriterException ignored) {
         }
+        g.setPart(0, DisplayList.Part.NONE);
 
         // Draw Private Key (QR & string) codes
         if(privateKeyGreyScale > 0 && privateKeyGreyScale <= 100){
@@ -128,15 +135,17 @@ public class KSSheet implements PrintableKeys {
                     final double sizeText = 0.1; // Size of Private key text in inches.
                     final double distance = 0.05; // Distance between text and QR code (inches).
                     final double offset = 0.05; // Text begins and ends inline with the edge of the QR code +/- offset (inches).
-                    drawQR(g, new Point((int)((2.5625 + (3.4375 * i)) * PPI), (int)((1.1750 + (2.05 * j)) * PPI)), (int)(sizeQR * PPI), fullPrivKeyStr[i + (j * 3)], ErrorCorrectionLevel.H);
-                    String[] s = splitPrivKeyString(g, "•" + fullPrivKeyStr[i + (j * 3)]);
+                    g.setPart(1 + i + (j * 3), DisplayList.Part.PRIVATEKEY);
+                    drawQR(g, new Point((int)((2.5625 + (3.4375 * i)) * PPI), (int)((1.1750 + (2.05 * j)) * PPI)), (int)(sizeQR * PPI), QREncoder.encode(fullPrivKeyStr[i + (j * 3)], ErrorCorrectionLevel.H));
+                    String[] s = splitPrivKeyString("•" + fullPrivKeyStr[i + (j * 3)]);
                     drawString(g, s[0], (int)((2.5625 + (3.4375 * i)) * PPI), (int)((1.1750 + (2.05 * j)) * PPI), 0, -(int)(((sizeQR / 2) - offset) * PPI), -(int)(((sizeQR / 2) + distance) * PPI), (int) (sizeText * PPI));
                     drawString(g, s[1], (int)((2.5625 + (3.4375 * i)) * PPI), (int)((1.1750 + (2.05 * j)) * PPI), 90, (int)(((sizeQR / 2) + distance)  * PPI), -(int)(((sizeQR / 2) - offset) * PPI), (int) (sizeText * PPI));
                     drawString(g, s[2], (int)((2.5625 + (3.4375 * i)) * PPI), (int)((1.1750 + (2.05 * j)) * PPI), 180, (int)(((sizeQR / 2) - offset) * PPI), (int)(((sizeQR / 2) + distance) * PPI), (int) (sizeText * PPI));
                     drawString(g, s[3] + " ", (int)((2.5625 + (3.4375 * i)) * PPI), (int)((1.1750 + (2.05 * j)) * PPI), 270, -(int)(((sizeQR / 2) + distance)  * PPI), (int)(((sizeQR / 2) - offset)  * PPI), (int) (sizeText * PPI));
 
-                    drawQR(g, new Point((int)((1.5625 + (3.4375 * i)) * PPI), (int)((5.2750 + (2.05 * j)) * PPI)), (int)(sizeQR * PPI), fullPrivKeyStr[6 + i + (j * 3)], ErrorCorrectionLevel.H);
-                    s = splitPrivKeyString(g, "•" + fullPrivKeyStr[6 + i + (j * 3)]);
+                    g.setPart(7 + i + (j * 3), DisplayList.Part.PRIVATEKEY);
+                    drawQR(g, new Point((int)((1.5625 + (3.4375 * i)) * PPI), (int)((5.2750 + (2.05 * j)) * PPI)), (int)(sizeQR * PPI), QREncoder.encode(fullPrivKeyStr[6 + i + (j * 3)], ErrorCorrectionLevel.H));
+                    s = splitPrivKeyString("•" + fullPrivKeyStr[6 + i + (j * 3)]);
                     drawString(g, s[0], (int)((1.5625 + (3.4375 * i)) * PPI), (int)((5.2750 + (2.05 * j)) * PPI), 180, (int)(((sizeQR / 2) - offset) * PPI), (int)(((sizeQR / 2) + distance) * PPI), (int) (sizeText * PPI));
                     drawString(g, s[1], (int)((1.5625 + (3.4375 * i)) * PPI), (int)((5.2750 + (2.05 * j)) * PPI), 270, -(int)(((sizeQR / 2) + distance)  * PPI), (int)(((sizeQR / 2) - offset)  * PPI), (int) (sizeText * PPI));
                     drawString(g, s[2], (int)((1.5625 + (3.4375 * i)) * PPI), (int)((5.2750 + (2.05 * j)) * PPI), 0, -(int)(((sizeQR / 2) - offset) * PPI), -(int)(((sizeQR / 2) + distance) * PPI), (int) (sizeText * PPI));
@@ -145,23 +154,47 @@ public class KSSheet implements PrintableKeys {
             }
         } catch (WriterException ignored) {
         }
+        g.setPart(0, DisplayList.Part.NONE);
         g.setColor(Color.BLACK);
 
         // Write truncated Public Keys on the Keystickers
         for (int i = 0; i < 3; i++) {
             for (int j = 0; j < 2; j++) {
-                String s = truncateAddress(g, (int)(0.75 * PPI), fullPubKeyStr[i + (j * 3)], (int)(0.1 * PPI));
+                g.setPart(1 + i + (j * 3), DisplayList.Part.ADDRESS);
+                String s = truncateAddress((int)(0.75 * PPI), fullPubKeyStr[i + (j * 3)], (int)(0.1 * PPI));
                 drawString(g, s, (int)((1.6375 + (3.4375 * i)) * PPI), (int)((0.8000 + (2.05 * j)) * PPI), 90, 0, 0, (int) (0.1 * PPI));
 
-                s = truncateAddress(g, (int)(0.75 * PPI), fullPubKeyStr[6 + i + (j * 3)], (int)(0.1 * PPI));
+                g.setPart(7 + i + (j * 3), DisplayList.Part.ADDRESS);
+                s = truncateAddress((int)(0.75 * PPI), fullPubKeyStr[6 + i + (j * 3)], (int)(0.1 * PPI));
                 drawString(g, s, (int)((2.4875 + (3.4375 * i)) * PPI), (int)((5.65 + (2.05 * j)) * PPI), 270, 0, 0, (int) (0.1 * PPI));
             }
         }
+        g.setPart(0, DisplayList.Part.NONE);
+
+        return g.build();
+    }
+
+    // Artwork that is identical on every page; built once (per process) and shared by every sheet
+    private DisplayList getTemplate(boolean outlines) {
+        return templates.computeIfAbsent(outlines, this::buildTemplate);
+    }
+
+    private DisplayList buildTemplate(boolean outlines) {
+        DisplayList.Builder g = new DisplayList.Builder(PPI);
+        g.setColor(Color.BLACK);
+
+        // Draw frames around each Keystickers
+        drawFrame(g);
+
+        // Draw Keysticker borders if enabled
+        if(outlines) {
+            drawKSOutline(g);
+        }
 
         // Write Sticker numbers
         for (int i = 0; i < 3; i++) {
             for (int j = 0; j < 2; j++) {
-                int ascent = (int)getAscent(g, "#" + (i + (j * 3) + 1), (int)(0.2 * PPI));
+                int ascent = (int)getAscent((int)(0.2 * PPI));
                 final int offset = (int)((0.5375 + (i == 2 ? 6.68125 : 3.24375 * i)) * PPI);
                 drawString(g, "#" + (i + (j * 3) + 1), offset, (int)((MARGIN + (1.85 * j)) * PPI), 0, (int)(0.0625 * PPI), ascent, (int) (0.2 * PPI));
 
@@ -169,26 +202,27 @@ public class KSSheet implements PrintableKeys {
             }
         }
 
-        return PAGE_EXISTS;
-
+        return g.build();
     }
 
     public int getKeyTotal() {
         return KEYTOTAL;
     }
 
-    public void setPublicKey(String text, int stickerNumber) {
+    public synchronized void setPublicKey(String text, int stickerNumber) {
         if (text == null) {
             throw new NullPointerException();
         }
         fullPubKeyStr[stickerNumber - 1] = text;
+        displayList = null;
     }
 
-    public void setPrivateKey(String text, int stickerNumber) {
+    public synchronized void setPrivateKey(String text, int stickerNumber) {
         if (text == null) {
             throw new NullPointerException();
         }
         fullPrivKeyStr[stickerNumber - 1] = text;
+        displayList = null;
     }
 
     public String getPrivateKey(int stickerNumber) {
@@ -211,6 +245,8 @@ public class KSSheet implements PrintableKeys {
 
             nSheet.stickerOutlines = this.stickerOutlines;
             nSheet.privateKeyGreyScale = this.privateKeyGreyScale;
+            nSheet.timestamp = this.timestamp;
+            nSheet.random = this.random;
 
             return nSheet;
         } catch (CloneNotSupportedException e) {
@@ -219,7 +255,7 @@ public class KSSheet implements PrintableKeys {
     }
 
     // Draws a table on the sheet so that each Keysticker has a section
-    private void drawFrame(Graphics2D g) {
+    private void drawFrame(DisplayList.Builder g) {
         g.setStroke(new BasicStroke(PPL));
 
         // Draw Horizontal Lines
@@ -247,7 +283,7 @@ public class KSSheet implements PrintableKeys {
     }
 
     // Draws the outline of the Keystickers. Helpful for configuring initial setup.
-    private void drawKSOutline(Graphics2D g) {
+    private void drawKSOutline(DisplayList.Builder g) {
         g.setStroke(new BasicStroke(PPL));
         for (int i = 0; i < 3; i++) { // Draw the outline for the Keystickers
             for (int j = 0; j < 2; j++) {
@@ -283,92 +319,58 @@ public class KSSheet implements PrintableKeys {
         }
     }
 
-    private void drawQR(Graphics2D g, Point center, int size, String qrStr, ErrorCorrectionLevel errLevel) throws WriterException {
-        final Map<EncodeHintType, Object> qrEncoding = new HashMap<>();
-        qrEncoding.put(EncodeHintType.ERROR_CORRECTION, errLevel); // L = ~7%, M = ~15%, Q = ~25%, H = ~30%
-        qrEncoding.put(EncodeHintType.MARGIN, 0);
-
-        BitMatrix m = (new QRCodeWriter()).encode(qrStr, BarcodeFormat.QR_CODE, 0, 0, qrEncoding);
-
-        int dotSize = size / m.getWidth(); // Integer division: the result is an integer and is truncated (fractional part thrown away). Not rounded to the closest integer.
-        double r = (double) (size % m.getWidth()) / (double) m.getWidth(); // Decimal remainder: used to help make the QR code the exact size.
-        Point start = new Point(center.x - (size / 2), center.y - (size / 2));
-
-        int xPixelCount = 0;
-        int xPixel;
-        for (int _x = 0; _x < m.getWidth(); _x++) {
-            xPixel = (int) (r * (double) (_x + 1)) - (int) (r * (double) _x);
-            int yPixelCount = 0;
-            int yPixel;
-            for (int _y = 0; _y < m.getWidth(); _y++) {
-                yPixel = (int) (r * (double) (_y + 1)) - (int) (r * (double) _y);
-                if (m.get(_x, _y)) {
-                    g.fillRect(start.x + (_x * dotSize) + xPixelCount, start.y + (_y * dotSize) + yPixelCount, dotSize + xPixel, dotSize + yPixel);
-                }
-                yPixelCount = yPixelCount + yPixel;
-            }
-            xPixelCount = xPixelCount + xPixel;
-        }
+    // Draws the QR code (see QREncoder) centered on the point; L = ~7%, M = ~15%, Q = ~25%, H = ~30% error correction
+    private void drawQR(DisplayList.Builder g, Point center, int size, BitMatrix m) {
+        g.drawQR(m, center.x - (size / 2), center.y - (size / 2), size);
     }
 
     // Adds text to the sheet at the desired location, orientation, and size
-    private void drawString(Graphics2D g, String text, int x, int y, double angle, int xOffset, int yOffset, int size) {
-        Font f = new Font(thisFont, FStyle, size);
-
-        AffineTransform affineTransform = new AffineTransform();
-        affineTransform.rotate(Math.toRadians(angle), 0, 0);
-        Font rF = f.deriveFont(affineTransform);
-
-        AttributedString as = new AttributedString(text);
-        as.addAttribute(TextAttribute.FONT, rF);
-        g.drawString(as.getIterator(), x + xOffset, y + yOffset);
+    private void drawString(DisplayList.Builder g, String text, int x, int y, double angle, int xOffset, int yOffset, int size) {
+        g.drawString(text, SheetFonts.get(size, angle), x + xOffset, y + yOffset);
     }
 
     // Gets the ascent from the font and its size; The recommended distance above the baseline for singled spaced text
-    private float getAscent(Graphics2D g, String text, int size) { // The distance from the baseline to the ascender line.
-        Font f = new Font(thisFont, FStyle, size);
-        LineMetrics lineMetrics = f.getLineMetrics(text, g.getFontRenderContext());
-        return lineMetrics.getAscent();
+    private float getAscent(int size) { // The distance from the baseline to the ascender line.
+        return SheetFonts.getAscent(size);
         // The ascent usually represents the the height of the capital letters of the text. Some characters can extend above the ascender line.
     }
 
     // Shortens the hashed public Key address while preserving sufficient data for verification. The data shown is selected at random for better security.
-    private String truncateAddress(Graphics2D g, int width, String address, int size) {
-        String trnAddress = address;
-
-        if (g.getFontMetrics(new Font(thisFont, FStyle, size)).stringWidth(trnAddress) < width)
-            return trnAddress;
-
-        // Select random portion of the address after the first 4 characters.
-        int iRnd = (int)(Math.random() * (trnAddress.length() - 4)) + 4; // 4 <= iRnd < (trnText.length() - 4)
-        if (iRnd != 4)
-            trnAddress = trnAddress.substring(0, 4) + "..." + trnAddress.substring(iRnd);
-
-        if (g.getFontMetrics(new Font(thisFont, FStyle, size)).stringWidth(trnAddress) >= width) { // String is too long; let's shorten it.
-            while (g.getFontMetrics(new Font(thisFont, FStyle, size)).stringWidth(trnAddress + "...") >= width)
-                trnAddress = trnAddress.substring(0, trnAddress.length() - 1);
-
-            return trnAddress + "...";
-        } else if (g.getFontMetrics(new Font(thisFont, FStyle, size)).stringWidth(trnAddress) <= (int)(width * 0.8)) { // String too short (less than 80% of desired width); let's try again (Recursion).
-            return truncateAddress(g, width, address, size);
+    private String truncateAddress(int width, String address, int size) {
+        if (stringWidth(address, size) < width)
+            return address;
+
+        // Select random portion of the address after the first 4 characters. Shown after "...", the portion must be wider than 80% of the
+        // width, so it can start anywhere from the 5th character to the last start that is still wide enough (4 = the whole address).
+        String head = address.substring(0, 4) + "...";
+        int end = Math.max(5, SheetFonts.getAdvances(size).fitEnd(head, address, (int)(width * 0.8) + 1)); // First start too narrow (if any)
+        int iRnd = (int)((random != null ? random.nextDouble() : Math.random()) * (end - 4)) + 4; // 4 <= iRnd < end
+        String trnAddress = iRnd == 4 ? address : head + address.substring(iRnd);
+
+        if (stringWidth(trnAddress, size) >= width) { // String is too long; let's shorten it.
+            return trnAddress.substring(0, SheetFonts.getAdvances(size).fit(trnAddress, 0, "...", width)) + "...";
         } else { // Length of string is about right.
             return trnAddress;
         }
     }
 
+    // Width of the text (rounded to the nearest unit) when drawn with this sheet's font at the given size
+    private int stringWidth(String text, int size) {
+        return SheetFonts.getAdvances(size).stringWidth(text);
+    }
+
     // Splits the text of a private key (into a 4 element string array) so that it can be wrapped around the private key QR code.
-    private String[] splitPrivKeyString(Graphics2D g, String key) {
+    private String[] splitPrivKeyString(String key) {
         String[] strArray = new String[4];
-        strArray[0] = "";
-        strArray[1] = "";
+        GlyphAdvances advances = SheetFonts.getAdvances(240);
 
+        int begin = 0;
         for(int i = 0; i < 3; i++) {
-            String trnText = key.substring(strArray[0].length() + strArray[1].length());
-            while (g.getFontMetrics(new Font(thisFont, FStyle, 240)).stringWidth(trnText) >= 1920)
-                trnText = trnText.substring(0, trnText.length() - 1);
-            strArray[i] = trnText;
+            int end = advances.fit(key, begin, "", 1920); // Longest run of characters narrower than 1920
+            strArray[i] = key.substring(begin, end);
+            begin = end;
         }
-        strArray[3] = key.substring(strArray[0].length() + strArray[1].length() + strArray[2].length());
+        strArray[3] = key.substring(begin);
 
         return strArray;
     }
@@ -0,0 +1,85 @@
+/*
+ *      Bulk secp256k1 key derivation. Public points are computed with a fixed
+ *      base comb (the table for the generator point is precomputed once and
+ *      shared) and are left in projective coordinates until the whole batch is
+ *      done; the batch is then converted to affine coordinates with a single
+ *      field inversion (Montgomery's trick) instead of one per key. The SHA-256
+ *      and RIPEMD-160 digests used for each Hash160 are reused.
+ *
+ *      Produces exactly the same compressed public keys and public key hashes
+ *      as BitcoinJ.ECKey. Instances are not thread safe; use one per thread.
+ *
+ *      This program is free software: you can redistribute it and/or modify
+ *      it under the terms of the GNU General Public License as published by
+ *      the Free Software Foundation, either version 3 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License
+ *      along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.satoshiware.keystickers;
+
+import org.bitcoinj.core.ECKey;
+import org.spongycastle.crypto.digests.RIPEMD160Digest;
+import org.spongycastle.crypto.digests.SHA256Digest;
+import org.spongycastle.math.ec.ECMultiplier;
+import org.spongycastle.math.ec.ECPoint;
+import org.spongycastle.math.ec.FixedPointCombMultiplier;
+
+import java.math.BigInteger;
+
+public class KeyEngine {
+    public static final int KEYSIZE = 32; // Size of a private key
+    public static final int PUBKEYSIZE = 33; // Size of a compressed public key
+    public static final int HASHSIZE = 20; // Size of a public key hash (Hash160)
+
+    private static final ECPoint G = ECKey.CURVE.getG();
+    private static final BigInteger N = ECKey.CURVE.getN();
+
+    private final ECMultiplier multiplier = new FixedPointCombMultiplier(); // The comb table is cached on G (shared by all instances)
+    private final SHA256Digest sha256 = new SHA256Digest();
+    private final RIPEMD160Digest ripemd160 = new RIPEMD160Digest();
+    private final byte[] digest = new byte[32];
+
+    // Derives the compressed public key and its hash for the first "count" private keys. The outputs must already be
+    // allocated (PUBKEYSIZE and HASHSIZE bytes each); they can be reused between batches.
+    public void derive(byte[][] privateKeys, int count, byte[][] publicKeys, byte[][] hashes) {
+        ECPoint[] points = new ECPoint[count];
+        for (int i = 0; i < count; i++) {
+            if (privateKeys[i].length != KEYSIZE) {
+                throw new IllegalArgumentException("KeyEngine requires private keys of exactly " + KEYSIZE + " bytes");
+            }
+
+            BigInteger d = new BigInteger(1, privateKeys[i]);
+            if (d.bitLength() > N.bitLength()) { // Same as ECKey.publicPointFromPrivate
+                d = d.mod(N);
+            }
+            if (d.signum() == 0) {
+                throw new IllegalArgumentException("Private key is zero");
+            }
+
+            points[i] = multiplier.multiply(G, d);
+        }
+
+        ECKey.CURVE.getCurve().normalizeAll(points); // One inversion for the whole batch
+
+        for (int i = 0; i < count; i++) {
+            byte[] encoded = points[i].getEncoded(true);
+            System.arraycopy(encoded, 0, publicKeys[i], 0, PUBKEYSIZE);
+            hash160(publicKeys[i], hashes[i]);
+        }
+    }
+
+    // RIPEMD-160 of the SHA-256 of the data
+    private void hash160(byte[] data, byte[] out) {
+        sha256.update(data, 0, data.length);
+        sha256.doFinal(digest, 0);
+        ripemd160.update(digest, 0, digest.length);
+        ripemd160.doFinal(out, 0);
+    }
+}
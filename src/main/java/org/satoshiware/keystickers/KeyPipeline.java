@@ -0,0 +1,233 @@
+/*
+ *      This class spreads key derivation (secp256k1 point multiplication) and
+ *      the WIF/Bech32 encodings across all available cores. Each worker draws
+ *      its key material from its own stream (see KSGenerator.split()), so no
+ *      locks are taken while generating. Every sheet is handled by a single
+ *      worker and its slots are always filled in order (1, 2, 3, ...). The
+ *      keys of a sheet are derived together as one batch (see KeyEngine).
+ *
+ *      This program is free software: you can redistribute it and/or modify
+ *      it under the terms of the GNU General Public License as published by
+ *      the Free Software Foundation, either version 3 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License
+ *      along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.satoshiware.keystickers;
+
+import org.satoshiware.keystickers.random.HealthTestException;
+import org.satoshiware.keystickers.random.KSGenerator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+public class KeyPipeline {
+
+    private final ThreadLocal<KSGenerator> streams; // Each worker thread's own random stream split from the master generator
+    private final ThreadLocal<KeyEngine> engines = ThreadLocal.withInitial(KeyEngine::new); // Each worker thread's own key derivation engine
+    private final ThreadLocal<WIFEncoder> wifs; // Each worker thread's own private key encoder
+    private final String hrp; // Human Readable Prefix for each address
+    private final P2WPKHEncoder bech32; // Encodes each address with the prefix
+    private final int threads; // Number of worker threads deriving keys
+    private final ExecutorService executor;
+
+    private final AtomicLong keyCount = new AtomicLong(); // Total number of keys derived by this pipeline
+    private final AtomicLong busyNanos = new AtomicLong(); // Time the workers have spent generating keys (summed over all of them)
+    private int active; // Workers generating keys right now (guarded by this)
+    private long activeSince; // When the first of the active workers started
+    private long activeNanos; // Wall clock time during which at least one worker was generating keys (before activeSince)
+    private volatile HealthTestException failure; // Set once a random source fails its health tests; no more keys are made
+
+    public KeyPipeline(KSGenerator generator, String hrp) {
+        this(generator, hrp, Runtime.getRuntime().availableProcessors());
+    }
+
+    public KeyPipeline(KSGenerator generator, String hrp, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("KeyPipeline requires at least one worker thread");
+        }
+
+        this.streams = ThreadLocal.withInitial(generator::split);
+        this.hrp = hrp;
+        this.bech32 = P2WPKHEncoder.forHrp(hrp);
+        boolean testnet = hrp.equalsIgnoreCase("tb");
+        this.wifs = ThreadLocal.withInitial(() -> new WIFEncoder(testnet));
+        this.threads = threads;
+
+        final AtomicInteger index = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "KeyPipeline-" + index.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // Fills every private and public key slot of each sheet. Returns once all the sheets are complete.
+    public void fill(PrintableKeys... sheets) {
+        List<Future<PrintableKeys>> futures = new ArrayList<>(sheets.length);
+        for (PrintableKeys sheet : sheets) {
+            futures.add(submit(sheet));
+        }
+
+        for (Future<PrintableKeys> future : futures) {
+            await(future);
+        }
+    }
+
+    // Queues the sheet to have all its key slots filled in the background
+    public Future<PrintableKeys> submit(PrintableKeys sheet) {
+        return submit(sheet, s -> {});
+    }
+
+    // Queues the sheet to have all its key slots filled in the background; "then" runs on the same worker once the keys are in place
+    // (e.g. compiling and verifying the sheet, so that happens in parallel too)
+    public Future<PrintableKeys> submit(PrintableKeys sheet, Consumer<PrintableKeys> then) {
+        if (failure != null) {
+            throw failure;
+        }
+
+        return executor.submit(() -> {
+            if (failure != null) {
+                throw failure;
+            }
+
+            long start = System.nanoTime();
+            begin(start);
+            try {
+                derive(sheet);
+            } catch (HealthTestException e) { // Every sheet still queued (or submitted later) fails without using any random source
+                failure = e;
+                throw e;
+            } finally {
+                long end = System.nanoTime();
+                busyNanos.addAndGet(end - start);
+                end(end);
+            }
+            then.accept(sheet);
+            return sheet;
+        });
+    }
+
+    // A worker starts generating keys
+    private synchronized void begin(long now) {
+        if (active++ == 0) activeSince = now;
+    }
+
+    // A worker is done generating keys; the wall clock time counts once however many workers were busy
+    private synchronized void end(long now) {
+        if (--active == 0) activeNanos += now - activeSince;
+    }
+
+    // Waits for a sheet queued with submit(); failures are rethrown as an IllegalStateException
+    public static PrintableKeys await(Future<PrintableKeys> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Key generation was interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IllegalStateException) { // Already explains itself (e.g. a failed health test or verification)
+                throw new IllegalStateException(e.getCause().getMessage(), e.getCause());
+            }
+            throw new IllegalStateException("Key generation failed: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    // Derives the keys for one sheet from the worker's own random stream. The random bytes are wiped afterwards.
+    private void derive(PrintableKeys sheet) {
+        KSGenerator stream = streams.get();
+        int count = sheet.getKeyTotal();
+        byte[][] privateKeys = new byte[count][KeyEngine.KEYSIZE];
+        byte[][] publicKeys = new byte[count][KeyEngine.PUBKEYSIZE];
+        byte[][] hashes = new byte[count][KeyEngine.HASHSIZE];
+        char[] address = new char[bech32.getLength()];
+        char[] wif = new char[WIFEncoder.MAXLENGTH];
+        WIFEncoder wifEncoder = wifs.get();
+
+        JobStats.StageEvent event = JobStats.begin(JobStats.Stage.RANDOM, -1);
+        for (int i = 0; i < count; i++) {
+            stream.getBytes(privateKeys[i]);
+        }
+        JobStats.end(event, count);
+
+        event = JobStats.begin(JobStats.Stage.DERIVE, -1);
+        engines.get().derive(privateKeys, count, publicKeys, hashes);
+        JobStats.end(event, count);
+
+        event = JobStats.begin(JobStats.Stage.ENCODE, -1);
+        for (int i = 0; i < count; i++) {
+            sheet.setPrivateKey(new String(wif, 0, wifEncoder.encode(privateKeys[i], wif, 0)), i + 1);
+            sheet.setPublicKey(new String(address, 0, bech32.encode(hashes[i], address, 0)), i + 1);
+        }
+        JobStats.end(event, count);
+        keyCount.addAndGet(count);
+
+        for (byte[] privateKey : privateKeys) {
+            Arrays.fill(privateKey, (byte) 0);
+        }
+        Arrays.fill(wif, '\0');
+    }
+
+    public long getKeyCount() {
+        return keyCount.get();
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    // Time the workers have spent generating keys (random bytes, derivation, and encoding), summed over all of them.
+    // Time spent waiting (for the print dialog, the printer, etc.) is not included.
+    public long getBusyNanos() {
+        return busyNanos.get();
+    }
+
+    // Wall clock time during which at least one worker was generating keys. Time spent waiting (with every worker idle) is not included.
+    public synchronized long getActiveNanos() {
+        return activeNanos + (active > 0 ? System.nanoTime() - activeSince : 0);
+    }
+
+    // Keys generated per second of wall clock time while the workers were busy (all the threads together)
+    public double getKeysPerSecond() {
+        long nanos = getActiveNanos();
+        return nanos == 0 ? 0 : keyCount.get() / (nanos / 1e9);
+    }
+
+    // Keys generated per second of worker time (one thread's throughput)
+    public double getKeysPerSecondPerThread() {
+        long nanos = getBusyNanos();
+        return nanos == 0 ? 0 : keyCount.get() / (nanos / 1e9);
+    }
+
+    // How many times faster the threads together were than one of them (the average number of workers busy at once)
+    public double getSpeedup() {
+        long nanos = getActiveNanos();
+        return nanos == 0 ? 0 : (double) getBusyNanos() / nanos;
+    }
+
+    // Human readable throughput report; e.g. "Generated 120 keys in 0.15 s (800.0 keys/sec; 230.8 keys/sec per thread, 3.47x speedup) using 4 threads"
+    public String getSummary() {
+        return String.format("Generated %,d keys in %.2f s (%,.1f keys/sec; %,.1f keys/sec per thread, %.2fx speedup) using %d thread%s",
+                getKeyCount(), getActiveNanos() / 1e9, getKeysPerSecond(), getKeysPerSecondPerThread(), getSpeedup(), threads, threads == 1 ? "" : "s");
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    // Stops the workers and discards any sheets still waiting to be filled
+    public void shutdownNow() {
+        executor.shutdownNow();
+    }
+}
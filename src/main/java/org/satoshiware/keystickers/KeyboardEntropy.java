@@ -30,15 +30,11 @@ public class KeyboardEntropy {
     private static byte[] seed; // Array links to initial entropy passed in the constructor; it is updated for each mouse movement.
 
     public static byte[] getEntropy(Scanner keyboard) {
-        seed = new byte[SEEDSIZE];
-
-        try { md5 = MessageDigest.getInstance("MD5"); } catch(NoSuchAlgorithmException ignored) {}
-
         System.out.println("Collecting Entropy... Enter a whole lotta random text (capital and lowercase letters, numbers, symbols, and special characters):\n");
         byte[] input = keyboard.nextLine().getBytes();
-
-        for(int i = 0; i < input.length; i++)
-            updateSeed(i, System.nanoTime() * (long)input[i]);
+        JobStats.StageEvent event = JobStats.begin(JobStats.Stage.ENTROPY, -1);
+        mix(input);
+        JobStats.end(event, input.length);
 
         byte[] out = new byte[OUTPUTLENGTH];
         System.out.println("\nKeyboard Entropy Created:");
@@ -51,6 +47,18 @@ public class KeyboardEntropy {
         return seed;
     }
 
+    // Creates a new seed from the text; each character is mixed in along with the time (nanoseconds) it was processed
+    public static byte[] mix(byte[] input) {
+        seed = new byte[SEEDSIZE];
+
+        try { md5 = MessageDigest.getInstance("MD5"); } catch(NoSuchAlgorithmException ignored) {}
+
+        for(int i = 0; i < input.length; i++)
+            updateSeed(i, System.nanoTime() * (long)input[i]);
+
+        return seed;
+    }
+
     private static String bytesToHex(byte[] bytes) {
         char[] hexArray = "0123456789ABCDEF".toCharArray();
         char[] hexChars = new char[bytes.length * 2];
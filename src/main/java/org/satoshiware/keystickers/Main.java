@@ -23,7 +23,12 @@ import javax.print.attribute.PrintRequestAttributeSet;
 import java.awt.*;
 import java.awt.print.*;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
 import java.util.Scanner;
+import java.util.function.Supplier;
 
 public class Main {
     public static void main(String[] args) {
@@ -62,7 +67,7 @@ public class Main {
                     if (!nextline.isEmpty())
                         hrp = nextline;
 
-                    print(generator, count, true, hrp.toLowerCase(), outline, darkness, 0);
+                    output(scanner, generator, count, true, hrp.toLowerCase(), outline, darkness, 0);
                     break;
                 case "-s":
                     System.out.print("Number of Pages (default = 10): ");
@@ -72,7 +77,7 @@ public class Main {
                     if (amount != 1000000 && amount != 500000 && amount != 250000 && amount != 100000 && amount != 50000 && amount != 25000 && amount != 10000)
                         amount = 1000000;
 
-                    print(generator, count, false, "bc", false, 100, amount);
+                    output(scanner, generator, count, false, "bc", false, 100, amount);
                     break;
                 default:
                     System.out.println("Error! Invalid program argument!");
@@ -85,43 +90,208 @@ public class Main {
         }
     }
 
-    private static void print(KSGenerator generator, int pgTotal, boolean keystickers, String hrp, boolean outline, float darkness, int amount) {
+    // Asks where the sheets go (the printer or image files) and then produces them
+    private static void output(Scanner scanner, KSGenerator generator, int pgTotal, boolean keystickers, String hrp, boolean outline, float darkness, int amount) {
+        System.out.print("Output (blank = printer; many = several printers at once, no dialog; ps = one PostScript file; png, pbm, or tiff = one image file per page): ");
+        String answer = scanner.nextLine().trim();
+        System.out.print("Funding Manifest File (blank = none; CSV of the public addresses for a send-to-many transaction): ");
+        String manifest = scanner.nextLine().trim();
+        File manifestFile = manifest.isEmpty() ? null : new File(manifest);
+
+        if (answer.equalsIgnoreCase("many")) {
+            System.out.println("Available printers: " + (PrintFanOut.getPrinterNames().isEmpty() ? "(none)" : String.join(", ", PrintFanOut.getPrinterNames())));
+            System.out.print("Printer Names (comma separated; file:NAME = stand-in that prints to PostScript files): ");
+            List<PrintFanOut.Queue> queues;
+            try {
+                queues = PrintFanOut.findQueues(scanner.nextLine());
+                if (queues.isEmpty()) throw new IllegalArgumentException("No printers were given");
+            } catch (IllegalArgumentException e) {
+                System.out.println("ERROR! " + e.getMessage());
+                return;
+            }
+
+            printMany(generator, pgTotal, keystickers, hrp, outline, darkness, amount, manifestFile, new PrintFanOut(queues));
+            return;
+        }
+
+        if (answer.equalsIgnoreCase("ps")) {
+            String name = keystickers ? "keystickers.ps" : "satoshicoins.ps";
+            System.out.print("Output File (default = " + name + "): ");
+            String file = scanner.nextLine();
+            if (file.isEmpty())
+                file = name;
+
+            writePostScript(generator, pgTotal, keystickers, hrp, outline, darkness, amount, manifestFile, new File(file));
+            return;
+        }
+
+        RasterExport.Format format = RasterExport.parseFormat(answer);
+        if (format == null) {
+            print(generator, pgTotal, keystickers, hrp, outline, darkness, amount, manifestFile);
+            return;
+        }
+
+        int dpi = 600; // Resolution of the exported images
+        System.out.print("Resolution (600, 1200, or 2400 DPI; default = 600): ");
+        try {dpi = Integer.parseInt(scanner.nextLine());} catch (Exception ignored){}
+        if (dpi != 600 && dpi != 1200 && dpi != 2400)
+            dpi = 600;
+        System.out.print("Output Directory (default = current directory): ");
+        String directory = scanner.nextLine();
+        if (directory.isEmpty())
+            directory = System.getProperty("user.dir");
+
+        export(generator, pgTotal, keystickers, hrp, outline, darkness, amount, manifestFile, new RasterExport(new File(directory), format, dpi));
+    }
+
+    private static void export(KSGenerator generator, int pgTotal, boolean keystickers, String hrp, boolean outline, float darkness, int amount, File manifestFile, RasterExport exporter) {
+        JobStats.startJob();
+        SheetVerifier.DPI = exporter.getDpi(); // Scan back exactly the pixels written to the files
+        KeyPipeline pipeline = new KeyPipeline(generator, hrp);
+        SheetPageable pageable = createPageable(pipeline, pgTotal, keystickers, outline, darkness, amount);
+        FundingManifest manifest = openManifest(manifestFile, keystickers, hrp, amount);
+        pageable.setManifest(manifest);
+
+        try {
+            long start = System.nanoTime();
+            List<File> files = exporter.export(pageable, keystickers ? "keystickers" : "satoshicoins");
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            System.out.println(pipeline.getSummary());
+            System.out.printf("Exported %,d pages (%,d bytes) in %.2f s (%.2f pages/sec) to \"%s\"%n", files.size(), exporter.getBytesWritten(), seconds, files.size() / seconds, files.isEmpty() ? "" : files.get(0).getParent());
+            String job = (keystickers ? "keystickers " : "satoshicoins ") + exporter.getFormat().getExtension();
+            System.out.print(JobStats.getSummary(job));
+            JobStats.log(job);
+            System.out.println("Remember! These files contain private keys; securely delete (shred) them after printing.");
+        } catch (Exception e) {
+            System.out.println("ERROR! Unable to export the sheets: " + e.getMessage());
+        } finally {
+            pageable.close();
+            pipeline.shutdownNow();
+            closeManifest(manifest, manifestFile);
+        }
+    }
+
+    private static void writePostScript(KSGenerator generator, int pgTotal, boolean keystickers, String hrp, boolean outline, float darkness, int amount, File manifestFile, File file) {
+        JobStats.startJob();
+        KeyPipeline pipeline = new KeyPipeline(generator, hrp);
+        SheetPageable pageable = createPageable(pipeline, pgTotal, keystickers, outline, darkness, amount);
+        FundingManifest manifest = openManifest(manifestFile, keystickers, hrp, amount);
+        pageable.setManifest(manifest);
+
+        try {
+            long start = System.nanoTime();
+            PostScriptWriter writer = new PostScriptWriter(new FileOutputStream(file), pgTotal);
+            try (writer) { // Closing writes the trailer, so the byte count below covers the whole file
+                writer.writeAll(pageable);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            System.out.println(pipeline.getSummary());
+            System.out.printf("Wrote %,d pages (%,d bytes) in %.2f s (%.2f pages/sec) to \"%s\"%n", writer.getPageCount(), writer.getBytesWritten(), seconds, writer.getPageCount() / seconds, file);
+            String job = keystickers ? "keystickers ps" : "satoshicoins ps";
+            System.out.print(JobStats.getSummary(job));
+            JobStats.log(job);
+            System.out.println("Remember! This file contains private keys; securely delete (shred) it after printing.");
+        } catch (Exception e) {
+            System.out.println("ERROR! Unable to write the PostScript file: " + e.getMessage());
+        } finally {
+            pageable.close();
+            pipeline.shutdownNow();
+            closeManifest(manifest, manifestFile);
+        }
+    }
+
+    // Opens the funding manifest (null if no file was given or it cannot be created; the sheets are still output)
+    private static FundingManifest openManifest(File file, boolean keystickers, String hrp, int amount) {
+        if (file == null) return null;
+
+        try {
+            return new FundingManifest(new FileOutputStream(file), keystickers ? "keystickers" : "satoshicoins", hrp, keystickers ? 0 : amount);
+        } catch (IOException e) {
+            System.out.println("WARNING! Unable to create the funding manifest \"" + file + "\": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static void closeManifest(FundingManifest manifest, File file) {
+        if (manifest == null) return;
+
+        try {
+            manifest.close();
+            System.out.printf("Funding manifest: %,d addresses from %,d pages written to \"%s\"%s%n", manifest.getAddressCount(), manifest.getPageCount(), file,
+                    manifest.getTotalAmount() == 0 ? "" : String.format(" (%,d sats in total)", manifest.getTotalAmount()));
+            if (manifest.getVoidCount() > 0) {
+                System.out.printf("    %,d VOID slot(s) were left out of the manifest; do NOT fund them%n", manifest.getVoidCount());
+            }
+        } catch (IOException e) {
+            System.out.println("ERROR! The funding manifest \"" + file + "\" is incomplete: " + e.getMessage());
+        }
+    }
+
+    // Page format used for each printed sheet: Letter (8.5" x 11"), landscape, no margins
+    private static PageFormat pageFormat() {
         Paper p = new Paper();
         p.setSize(612, 792); // Paper Size: Letter (8.5" x 11"; 1" = 72 points)
         p.setImageableArea(0, 0, 612, 792); // No margins
 
-        PageFormat pf = new PageFormat(); // This is the page format used for each printed sheet.
+        PageFormat pf = new PageFormat();
         pf.setPaper(p);
         pf.setOrientation(PageFormat.LANDSCAPE);
+        return pf;
+    }
+
+    // Group of sheets (pages) generated on demand as they are sent to the printer (or file) of choice.
+    private static SheetPageable createPageable(KeyPipeline pipeline, int pgTotal, boolean keystickers, boolean outline, float darkness, int amount) {
+        return new SheetPageable(pipeline, sheetFactory(keystickers, outline, darkness, amount), pageFormat(), pgTotal);
+    }
 
-        Book book = new Book(); // Group of sheets (pages) that are prepared and then sent to the printer of choice.
-        for (int j = 1; j <= pgTotal; j++) {
-            PrintableKeys sheet;
+    // Creates each empty (but fully configured) sheet
+    private static Supplier<PrintableKeys> sheetFactory(boolean keystickers, boolean outline, float darkness, int amount) {
+        return () -> {
             if (keystickers) { // Keystickers
-                sheet = new KSSheet();
+                KSSheet sheet = new KSSheet();
 
-                ((KSSheet) sheet).stickerOutlines = outline;
-                ((KSSheet) sheet).privateKeyGreyScale = 100 - darkness;
+                sheet.stickerOutlines = outline;
+                sheet.privateKeyGreyScale = 100 - darkness;
+                return sheet;
             } else { // Satoshi Coins
-                sheet = new SCSheet();
+                SCSheet sheet = new SCSheet();
 
-                ((SCSheet) sheet).satoshiAmount = amount;
+                sheet.satoshiAmount = amount;
+                return sheet;
             }
+        };
+    }
 
-            for (int i = 1; i <= sheet.getKeyTotal(); i++) {
-                byte[] bytes = new byte[32];
-                generator.getBytes(bytes);
-                KSKey key = new KSKey(bytes);
+    // Headless printing: the pages are shared out (in chunks) over several printers at once
+    private static void printMany(KSGenerator generator, int pgTotal, boolean keystickers, String hrp, boolean outline, float darkness, int amount, File manifestFile, PrintFanOut fanOut) {
+        JobStats.startJob();
+        KeyPipeline pipeline = new KeyPipeline(generator, hrp);
+        FundingManifest manifest = openManifest(manifestFile, keystickers, hrp, amount);
 
-                if(hrp.equalsIgnoreCase("tb"))
-                    sheet.setPrivateKey(key.getWIF(true), i);
-                else
-                    sheet.setPrivateKey(key.getWIF(false), i);
-                sheet.setPublicKey(key.getP2WPKH(hrp, 0), i);
-            }
+        try {
+            String job = keystickers ? "keystickers" : "satoshicoins";
+            fanOut.print(pipeline, sheetFactory(keystickers, outline, darkness, amount), pageFormat(), pgTotal, manifest, job);
 
-            book.append(sheet, pf);
+            System.out.println(pipeline.getSummary());
+            System.out.print(fanOut.getSummary());
+            for (String problem : fanOut.getProblems()) {
+                System.out.println("ERROR! " + problem);
+            }
+            System.out.print(JobStats.getSummary(job + " printers"));
+            JobStats.log(job + " printers");
+        } finally {
+            pipeline.shutdownNow();
+            closeManifest(manifest, manifestFile);
         }
+    }
+
+    private static void print(KSGenerator generator, int pgTotal, boolean keystickers, String hrp, boolean outline, float darkness, int amount, File manifestFile) {
+        KeyPipeline pipeline = new KeyPipeline(generator, hrp); // Derives and encodes the keys on all available cores
+        SheetPageable pageable = createPageable(pipeline, pgTotal, keystickers, outline, darkness, amount);
+        FundingManifest manifest = openManifest(manifestFile, keystickers, hrp, amount);
+        pageable.setManifest(manifest);
 
         Thread thread = new Thread("Printing") {
             public void run() {
@@ -133,11 +303,32 @@ public class Main {
 
                 try {
                     PrinterJob job = PrinterJob.getPrinterJob();
-                    job.setPageable(book);
+                    job.setPageable(pageable);
                     if (job.printDialog(aset)) {
-                        job.print();
+                        pageable.setDeviceResolution(SheetPageable.getDeviceResolution(job.getPrintService(), aset));
+                        JobStats.startJob(); // Not counting the time spent in the dialog (the first sheets are generated meanwhile)
+                        JobStats.StageEvent event = JobStats.begin(JobStats.Stage.SPOOL, -1);
+                        try {
+                            job.print();
+                        } finally { // Fewer than pgTotal if only a page range was printed or the job was cancelled
+                            JobStats.end(event, pageable.getPagesHandedOut());
+                        }
+
+                        System.out.println(pipeline.getSummary());
+                        String name = keystickers ? "keystickers printer" : "satoshicoins printer";
+                        System.out.print(JobStats.getSummary(name));
+                        JobStats.log(name);
                     }
-                } catch (PrinterException ignored) {}
+                } catch (PrinterAbortException ignored) {
+                } catch (PrinterException e) { // The print system may wrap a failed sheet
+                    System.out.println("ERROR! Printing stopped: " + (e.getCause() != null ? e.getCause().getMessage() : e.getMessage()));
+                } catch (IllegalStateException e) { // e.g. a random source failed its health tests or a sheet failed its verification
+                    System.out.println("ERROR! Printing stopped: " + e.getMessage());
+                } finally {
+                    pageable.close();
+                    pipeline.shutdownNow();
+                    closeManifest(manifest, manifestFile);
+                }
                 frame.dispose();
             }
         };
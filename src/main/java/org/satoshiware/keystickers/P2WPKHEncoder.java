@@ -0,0 +1,136 @@
+/*
+ *      Bech32 encoder specialized for version 0 pay-to-witness-public-key-hash
+ *      (P2WPKH) addresses. The shape never changes (a 20-byte program becomes
+ *      32 data symbols followed by 6 checksum symbols), so the HRP's part of
+ *      the checksum is computed once per prefix, the checksum polynomial is
+ *      table driven, and the address is written straight into a char array.
+ *      Nothing is allocated per address. Produces exactly the same addresses
+ *      as Bech32.encode.
+ *
+ *      This program is free software: you can redistribute it and/or modify
+ *      it under the terms of the GNU General Public License as published by
+ *      the Free Software Foundation, either version 3 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License
+ *      along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.satoshiware.keystickers;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+public final class P2WPKHEncoder {
+    public static final int HASHSIZE = 20; // Size of the public key hash (the witness program)
+    private static final int DATASYMBOLS = 1 + 32; // Witness version + the 160 bit program in 5 bit groups
+    private static final int CHECKSUMSYMBOLS = 6;
+
+    private static final char[] CHARSET = Bech32.CHARSET.toCharArray();
+    private static final int[] GENERATOR = {0x3b6a57b2, 0x26508e6d, 0x1ea119fa, 0x3d4233dd, 0x2a1462b3};
+    private static final int[] TABLE = new int[32]; // XOR of the generator terms selected by the top 5 bits of the checksum state
+
+    private static final ConcurrentHashMap<String, P2WPKHEncoder> encoders = new ConcurrentHashMap<>();
+
+    static {
+        for (int i = 0; i < 32; i++) {
+            for (int j = 0; j < 5; j++) {
+                if ((i & (1 << j)) != 0) TABLE[i] ^= GENERATOR[j];
+            }
+        }
+
+        encoders.put("bc", new P2WPKHEncoder("bc"));
+        encoders.put("tb", new P2WPKHEncoder("tb"));
+    }
+
+    private final char[] prefix; // HRP followed by the separator '1'
+    private final int hrpState; // Checksum state after the expanded HRP
+
+    private P2WPKHEncoder(String hrp) {
+        if (hrp.length() < 1 || hrp.length() > 83) {
+            throw new IllegalArgumentException("Human-readable part must be 1 to 83 characters");
+        }
+
+        prefix = (hrp + "1").toCharArray();
+
+        int c = 1;
+        for (int i = 0; i < hrp.length(); i++) {
+            c = step(c, (hrp.charAt(i) & 0x7f) >>> 5);
+        }
+        c = step(c, 0);
+        for (int i = 0; i < hrp.length(); i++) {
+            c = step(c, hrp.charAt(i) & 0x1f);
+        }
+        hrpState = c;
+    }
+
+    // Encoder for the Human Readable Prefix (e.g. "bc" or "tb"); case insensitive
+    public static P2WPKHEncoder forHrp(String hrp) {
+        String lower = hrp.toLowerCase(Locale.ROOT);
+        P2WPKHEncoder encoder = encoders.get(lower);
+        if (encoder == null) {
+            encoder = new P2WPKHEncoder(lower);
+            P2WPKHEncoder previous = encoders.putIfAbsent(lower, encoder);
+            if (previous != null) encoder = previous;
+        }
+
+        return encoder;
+    }
+
+    // Number of characters in every address produced by this encoder
+    public int getLength() {
+        return prefix.length + DATASYMBOLS + CHECKSUMSYMBOLS;
+    }
+
+    // Writes the address of the 20-byte public key hash into "out" starting at "offset". Returns the number of characters written.
+    public int encode(byte[] hash, char[] out, int offset) {
+        if (hash.length != HASHSIZE) {
+            throw new IllegalArgumentException("P2WPKH requires a " + HASHSIZE + " byte public key hash");
+        }
+        if (out.length - offset < getLength()) {
+            throw new IllegalArgumentException("The output array is too small for a " + getLength() + " character address");
+        }
+
+        int pos = offset;
+        System.arraycopy(prefix, 0, out, pos, prefix.length);
+        pos += prefix.length;
+
+        int c = step(hrpState, 0); // Witness version 0
+        out[pos++] = CHARSET[0];
+
+        for (int i = 0; i < HASHSIZE; i += 5) { // Every 5 bytes (40 bits) make exactly 8 symbols
+            long group = ((long) (hash[i] & 0xff) << 32) | ((long) (hash[i + 1] & 0xff) << 24) | ((hash[i + 2] & 0xff) << 16) | ((hash[i + 3] & 0xff) << 8) | (hash[i + 4] & 0xff);
+            for (int shift = 35; shift >= 0; shift -= 5) {
+                int symbol = (int) (group >>> shift) & 0x1f;
+                c = step(c, symbol);
+                out[pos++] = CHARSET[symbol];
+            }
+        }
+
+        for (int i = 0; i < CHECKSUMSYMBOLS; i++) {
+            c = step(c, 0);
+        }
+        c ^= 1;
+        for (int i = 0; i < CHECKSUMSYMBOLS; i++) {
+            out[pos++] = CHARSET[(c >>> (5 * (5 - i))) & 0x1f];
+        }
+
+        return pos - offset;
+    }
+
+    // Address of the 20-byte public key hash
+    public String encode(byte[] hash) {
+        char[] out = new char[getLength()];
+        encode(hash, out, 0);
+        return new String(out);
+    }
+
+    // One step of the Bech32 checksum (BCH code) polynomial
+    private static int step(int c, int value) {
+        return ((c & 0x1ffffff) << 5) ^ value ^ TABLE[c >>> 25];
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ *      Writes sheets straight to a PostScript (Level 2) file without going
+ *      through java.awt.print. The procedures and fonts are defined once in the
+ *      prolog, each page replays the sheet's display list in its own units
+ *      (no 72 PPI scaling hack), and every QR code becomes one compact
+ *      "imagemask" with one bit per module. Templates (the static artwork
+ *      shared by every page) are defined once as procedures. The result can be
+ *      sent to any PostScript printer (e.g. "lp keystickers.ps").
+ *
+ *      Sheets are Letter (8.5" x 11") landscape; the page is rotated the same
+ *      way java.awt.print rotates PageFormat.LANDSCAPE.
+ *
+ *      This program is free software: you can redistribute it and/or modify
+ *      it under the terms of the GNU General Public License as published by
+ *      the Free Software Foundation, either version 3 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License
+ *      along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.satoshiware.keystickers;
+
+import com.google.zxing.common.BitMatrix;
+
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Line2D;
+import java.awt.geom.PathIterator;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.IdentityHashMap;
+import java.util.Locale;
+
+public class PostScriptWriter implements DisplayList.Renderer, Closeable {
+    private static final int PAPERWIDTH = 612; // Letter (portrait) in points
+    private static final int PAPERHEIGHT = 792;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Writer out;
+    private final CountingOutputStream counter;
+    private final StringBuilder sb = new StringBuilder(1 << 12); // Current operation; flushed to "out" after each one
+    private final IdentityHashMap<DisplayList, String> templates = new IdentityHashMap<>(); // Procedure name of each template defined so far
+    private int pageCount;
+    private boolean closed;
+    private long reported; // Bytes already added to the job's statistics
+
+    private float lineWidth = -1; // Current graphics state (avoids repeating operators that would not change anything)
+    private Color color;
+
+    public PostScriptWriter(OutputStream os, int pgTotal) throws IOException {
+        counter = new CountingOutputStream(new BufferedOutputStream(os, 1 << 16));
+        out = new OutputStreamWriter(counter, StandardCharsets.ISO_8859_1);
+
+        out.write("%!PS-Adobe-3.0\n");
+        out.write("%%Creator: Keystickers\n");
+        out.write("%%LanguageLevel: 2\n");
+        out.write("%%Pages: " + pgTotal + "\n");
+        out.write("%%BoundingBox: 0 0 " + PAPERWIDTH + " " + PAPERHEIGHT + "\n");
+        out.write("%%DocumentMedia: Letter " + PAPERWIDTH + " " + PAPERHEIGHT + " 0 () ()\n");
+        out.write("%%Orientation: Landscape\n");
+        out.write("%%DocumentNeededResources: font Times-Roman Helvetica\n");
+        out.write("%%EndComments\n");
+
+        out.write("%%BeginProlog\n");
+        out.write("/KSdict 32 dict def KSdict begin\n");
+        out.write("/m {moveto} bind def /l {lineto} bind def /c {curveto} bind def /h {closepath} bind def\n");
+        out.write("/S {stroke} bind def /f {fill} bind def /ef {eofill} bind def\n");
+        out.write("/W {setlinewidth} bind def /RG {setrgbcolor} bind def\n");
+        out.write("/L {moveto lineto stroke} bind def % x2 y2 x1 y1 L\n");
+        out.write("/FS /Times-Roman findfont def /FH /Helvetica findfont def\n");
+        out.write("/T {gsave translate rotate 1 -1 scale scalefont setfont 0 0 moveto show grestore} bind def % (text) font size angle x y T\n");
+        out.write("/Q {gsave translate dup scale /qw exch def qw qw true [qw 0 0 qw 0 0] 5 -1 roll imagemask grestore} bind def % <modules> w size x y Q\n");
+        out.write("end\n");
+        out.write("%%EndProlog\n");
+
+        out.write("%%BeginSetup\n");
+        out.write("<< /PageSize [" + PAPERWIDTH + " " + PAPERHEIGHT + "] >> setpagedevice\n");
+        // The setup section is completed by the first page (it defines that page's templates)
+    }
+
+    // Writes every page of the pageable (requested in order), each with the display list its sheet was compiled into
+    public void writeAll(SheetPageable pageable) throws IOException {
+        for (int i = 0; i < pageable.getNumberOfPages(); i++) {
+            writePage(pageable.getSheet(i).compile(pageable.getFirstPage() + i));
+        }
+    }
+
+    public void writePage(DisplayList dl) throws IOException {
+        JobStats.StageEvent event = JobStats.begin(JobStats.Stage.RENDER, pageCount);
+
+        // Templates are defined outside the page's save/restore so later pages can reuse them.
+        // The first page's templates go in the setup section; any new ones after that are defined just before their page.
+        for (DisplayList template : dl.getTemplates()) {
+            define(template);
+        }
+        if (pageCount == 0) {
+            out.write("%%EndSetup\n");
+        }
+
+        pageCount++;
+        lineWidth = -1;
+        color = null;
+
+        out.write("%%Page: " + pageCount + " " + pageCount + "\n");
+        out.write("save KSdict begin\n");
+        // Landscape: sheet x runs up the paper and sheet y runs left to right (same as PageFormat.LANDSCAPE)
+        out.write("[0 1 1 0 0 0] concat 72 " + dl.getResolution() + " div dup scale 2 setlinecap 0 setlinejoin 0 0 0 RG\n");
+        color = Color.BLACK;
+
+        dl.render(this);
+        flush();
+
+        out.write("end restore showpage\n");
+        out.flush(); // Keeps the byte count current
+
+        reportBytes();
+        JobStats.end(event, 1);
+    }
+
+    // Writes the trailer and flushes; the underlying stream is closed too
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+
+        if (pageCount == 0) {
+            out.write("%%EndSetup\n");
+        }
+        out.write("%%Trailer\n");
+        out.write("%%EOF\n");
+        out.close();
+        reportBytes();
+    }
+
+    public int getPageCount() {
+        return pageCount;
+    }
+
+    // Number of bytes written so far (excluding anything still buffered in the writer)
+    public long getBytesWritten() {
+        return counter.count;
+    }
+
+    public void setColor(Color c) {
+        if (c.equals(color)) return;
+        color = c;
+
+        sb.append(num(c.getRed() / 255f)).append(' ').append(num(c.getGreen() / 255f)).append(' ').append(num(c.getBlue() / 255f)).append(" RG\n");
+        flushIfLarge();
+    }
+
+    public void setStroke(Stroke stroke) {
+        float width = stroke instanceof BasicStroke ? ((BasicStroke) stroke).getLineWidth() : 1;
+        if (width == lineWidth) return;
+        lineWidth = width;
+
+        sb.append(num(width)).append(" W\n");
+        flushIfLarge();
+    }
+
+    public void draw(Shape shape) {
+        if (shape instanceof Line2D) {
+            Line2D line = (Line2D) shape;
+            sb.append(num(line.getX2())).append(' ').append(num(line.getY2())).append(' ').append(num(line.getX1())).append(' ').append(num(line.getY1())).append(" L\n");
+        } else {
+            path(shape);
+            sb.append("S\n");
+        }
+        flushIfLarge();
+    }
+
+    public void fill(Shape shape) {
+        int rule = path(shape);
+        sb.append(rule == PathIterator.WIND_EVEN_ODD ? "ef\n" : "f\n");
+        flushIfLarge();
+    }
+
+    public void drawQR(BitMatrix m, int x, int y, int size) {
+        int w = m.getWidth();
+        sb.append('<');
+        for (int _y = 0; _y < w; _y++) {
+            for (int _x = 0; _x < w; _x += 8) { // Rows are padded to a whole byte
+                int b = 0;
+                for (int bit = 0; bit < 8; bit++) {
+                    b <<= 1;
+                    if (_x + bit < w && m.get(_x + bit, _y)) b |= 1;
+                }
+                sb.append(HEX[b >>> 4]).append(HEX[b & 0x0F]);
+            }
+        }
+        sb.append("> ").append(w).append(' ').append(size).append(' ').append(x).append(' ').append(y).append(" Q\n");
+        flushIfLarge();
+    }
+
+    public void drawString(String text, Font font, int x, int y) {
+        AffineTransform t = font.getTransform();
+        double angle = Math.toDegrees(Math.atan2(t.getShearY(), t.getScaleX()));
+
+        sb.append('(');
+        for (int i = 0; i < text.length(); i++) {
+            char ch = text.charAt(i);
+            if (ch == '(' || ch == ')' || ch == '\\') {
+                sb.append('\\').append(ch);
+            } else if (ch == '•') {
+                sb.append("\\267"); // bullet in StandardEncoding
+            } else if (ch >= 32 && ch < 127) {
+                sb.append(ch);
+            } else {
+                sb.append('?');
+            }
+        }
+        sb.append(") ").append(psFont(font)).append(' ').append(num(font.getSize2D())).append(' ').append(num(angle)).append(' ').append(x).append(' ').append(y).append(" T\n");
+        flushIfLarge();
+    }
+
+    public void drawTemplate(DisplayList template) {
+        String name = templates.get(template);
+        if (name == null) { // Not defined ahead of the page (should not happen); draw it in place
+            template.render(this);
+            return;
+        }
+
+        sb.append(name).append('\n');
+        lineWidth = -1; // The template may have changed the color and stroke
+        color = null;
+        flushIfLarge();
+    }
+
+    // Writes the template as a procedure named Fn within KSdict (nested templates are defined first)
+    private void define(DisplayList template) throws IOException {
+        if (templates.containsKey(template)) return;
+        for (DisplayList nested : template.getTemplates()) {
+            define(nested);
+        }
+
+        String name = "F" + (templates.size() + 1);
+        out.write("KSdict begin /" + name + " {\n");
+        lineWidth = -1; // Nothing is known about the graphics state when the procedure is called
+        color = null;
+        template.render(this);
+        flush();
+        out.write("} bind def end\n");
+
+        templates.put(template, name);
+    }
+
+    // Liberation Serif and Times New Roman share the metrics of the standard Times-Roman; anything else falls back to Helvetica
+    private static String psFont(Font font) {
+        String family = font.getFamily();
+        return (family.contains("Serif") && !family.contains("Sans")) || family.contains("Times") ? "FS" : "FH";
+    }
+
+    // Appends the shape's path; returns its winding rule
+    private int path(Shape shape) {
+        double[] c = new double[6];
+        double lastX = 0, lastY = 0;
+        PathIterator it = shape.getPathIterator(null);
+        for (; !it.isDone(); it.next()) {
+            switch (it.currentSegment(c)) {
+                case PathIterator.SEG_MOVETO:
+                    sb.append(num(c[0])).append(' ').append(num(c[1])).append(" m ");
+                    lastX = c[0];
+                    lastY = c[1];
+                    break;
+                case PathIterator.SEG_LINETO:
+                    sb.append(num(c[0])).append(' ').append(num(c[1])).append(" l ");
+                    lastX = c[0];
+                    lastY = c[1];
+                    break;
+                case PathIterator.SEG_QUADTO: // Elevated to a cubic
+                    sb.append(num(lastX + 2.0 / 3.0 * (c[0] - lastX))).append(' ').append(num(lastY + 2.0 / 3.0 * (c[1] - lastY))).append(' ')
+                            .append(num(c[2] + 2.0 / 3.0 * (c[0] - c[2]))).append(' ').append(num(c[3] + 2.0 / 3.0 * (c[1] - c[3]))).append(' ')
+                            .append(num(c[2])).append(' ').append(num(c[3])).append(" c ");
+                    lastX = c[2];
+                    lastY = c[3];
+                    break;
+                case PathIterator.SEG_CUBICTO:
+                    sb.append(num(c[0])).append(' ').append(num(c[1])).append(' ').append(num(c[2])).append(' ')
+                            .append(num(c[3])).append(' ').append(num(c[4])).append(' ').append(num(c[5])).append(" c ");
+                    lastX = c[4];
+                    lastY = c[5];
+                    break;
+                case PathIterator.SEG_CLOSE:
+                    sb.append("h ");
+                    break;
+            }
+        }
+
+        return it.getWindingRule();
+    }
+
+    // Whole numbers are written without a decimal point; everything else with up to 3 decimal places
+    private static String num(double v) {
+        if (v == Math.rint(v) && Math.abs(v) < 1e9) {
+            return Long.toString((long) v);
+        }
+
+        String s = String.format(Locale.ROOT, "%.3f", v); // PostScript needs a decimal point in every locale
+        int end = s.length();
+        while (s.charAt(end - 1) == '0') end--;
+        return s.substring(0, end);
+    }
+
+    // Adds the bytes written since the last report to the job's statistics
+    private void reportBytes() {
+        JobStats.addBytes(getBytesWritten() - reported);
+        reported = getBytesWritten();
+    }
+
+    private void flushIfLarge() {
+        if (sb.length() >= (1 << 12)) {
+            flush();
+        }
+    }
+
+    private void flush() {
+        try {
+            out.write(sb.toString());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        sb.setLength(0);
+    }
+
+    // Counts the bytes that pass through to the underlying stream
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
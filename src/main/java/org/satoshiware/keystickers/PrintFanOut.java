@@ -0,0 +1,251 @@
+/*
+ *      Headless printing on several printers at once. The printers (or CUPS
+ *      queues) are found by name with javax.print, so no print dialog is
+ *      needed. The job is cut into chunks of CHUNKPAGES pages; every printer
+ *      takes the next chunk as soon as it has spooled its last one, so faster
+ *      printers simply print more of the job. Each chunk is its own print job
+ *      (e.g. "satoshicoins pages 21-30") with its own SheetPageable, and its
+ *      sheets are numbered by their place in the whole job.
+ *
+ *      A queue named "file:NAME" stands in for a printer: each of its chunks is
+ *      spooled through the same java print system to a PostScript file (e.g.
+ *      NAME-0021-0030.ps), so the fan-out can be tried without any hardware.
+ *
+ *      If a printer fails, it takes no more chunks and the pages of its chunk
+ *      are reported (they are never reprinted; their keys no longer exist).
+ *      The other printers carry on. A failed random source or sheet
+ *      verification stops every printer.
+ *
+ *      This program is free software: you can redistribute it and/or modify
+ *      it under the terms of the GNU General Public License as published by
+ *      the Free Software Foundation, either version 3 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License
+ *      along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.satoshiware.keystickers;
+
+import javax.print.PrintService;
+import javax.print.PrintServiceLookup;
+import javax.print.StreamPrintService;
+import javax.print.StreamPrintServiceFactory;
+import java.awt.print.*;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+public class PrintFanOut {
+    public static int CHUNKPAGES = 10; // Pages in each print job; smaller chunks balance better, larger ones spool less often
+    public static final String FILEQUEUE = "file:"; // Prefix of a stand-in queue that prints to PostScript files
+
+    private final List<Queue> queues;
+    private final List<String> problems = Collections.synchronizedList(new ArrayList<>()); // Failures, in the order they happened
+
+    public PrintFanOut(List<Queue> queues) {
+        if (queues.isEmpty()) {
+            throw new IllegalArgumentException("PrintFanOut requires at least one printer");
+        }
+
+        this.queues = new ArrayList<>(queues);
+    }
+
+    // Names of every printer (print service) available to javax.print
+    public static List<String> getPrinterNames() {
+        List<String> names = new ArrayList<>();
+        for (PrintService service : PrintServiceLookup.lookupPrintServices(null, null)) {
+            names.add(service.getName());
+        }
+        return names;
+    }
+
+    // Finds the comma separated printers by name (case insensitive); "file:NAME" is a stand-in queue writing PostScript files
+    public static List<Queue> findQueues(String names) {
+        PrintService[] services = PrintServiceLookup.lookupPrintServices(null, null);
+
+        List<Queue> queues = new ArrayList<>();
+        for (String name : names.split(",")) {
+            name = name.trim();
+            if (name.isEmpty()) continue;
+
+            if (name.regionMatches(true, 0, FILEQUEUE, 0, FILEQUEUE.length())) {
+                String prefix = name.substring(FILEQUEUE.length());
+                if (prefix.isEmpty()) throw new IllegalArgumentException("The stand-in queue \"" + name + "\" needs a file name (e.g. file:queue1)");
+                queues.add(new Queue(name, null, prefix));
+                continue;
+            }
+
+            PrintService found = null;
+            for (PrintService service : services) {
+                if (service.getName().equalsIgnoreCase(name)) found = service;
+            }
+            if (found == null) {
+                throw new IllegalArgumentException("There is no printer named \"" + name + "\"");
+            }
+            queues.add(new Queue(found.getName(), found, null));
+        }
+
+        return queues;
+    }
+
+    // Prints pages 0 to pgTotal - 1 over every queue at once; returns once all the chunks are spooled (or no printer is left)
+    public void print(KeyPipeline pipeline, Supplier<PrintableKeys> factory, PageFormat pf, int pgTotal, FundingManifest manifest, String jobName) {
+        AtomicInteger next = new AtomicInteger(); // First page of the next chunk
+        AtomicBoolean stopped = new AtomicBoolean(); // Set once the whole job must stop
+
+        final AtomicInteger index = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(queues.size(), r -> {
+            Thread t = new Thread(r, "PrintFanOut-" + index.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (Queue queue : queues) {
+            futures.add(executor.submit(() -> {
+                while (!stopped.get()) {
+                    int first = next.getAndAdd(CHUNKPAGES);
+                    if (first >= pgTotal) break;
+                    int count = Math.min(CHUNKPAGES, pgTotal - first);
+                    String range = "pages " + (first + 1) + "-" + (first + count);
+
+                    SheetPageable pageable = new SheetPageable(pipeline, factory, pf, first, count, SheetPageable.LOOKAHEAD);
+                    pageable.setManifest(manifest);
+                    pageable.setDeviceResolution(queue.getResolution());
+                    JobStats.StageEvent event = JobStats.begin(JobStats.Stage.SPOOL, first);
+                    try {
+                        queue.spool(pageable, jobName + " " + range, first, count);
+                        JobStats.end(event, count);
+                        queue.pages.addAndGet(count);
+                        queue.jobs.incrementAndGet();
+                    } catch (PrinterAbortException e) {
+                        problems.add(queue.name + ": " + range + " were cancelled and may be incomplete");
+                        break;
+                    } catch (PrinterException | IOException e) { // This printer is out; the others carry on
+                        String reason = e.getCause() instanceof IllegalStateException ? e.getCause().getMessage() : e.getMessage();
+                        problems.add(queue.name + ": " + range + " may be incomplete (" + reason + "); no more pages were sent to it");
+                        if (e.getCause() instanceof IllegalStateException) stopped.set(true);
+                        break;
+                    } catch (IllegalStateException e) { // e.g. a random source failed its health tests or a sheet failed its verification
+                        problems.add(queue.name + ": " + range + " may be incomplete (" + e.getMessage() + ")");
+                        stopped.set(true);
+                        break;
+                    } catch (RuntimeException e) { // Anything else also takes only this printer out
+                        problems.add(queue.name + ": " + range + " may be incomplete (" + e + "); no more pages were sent to it");
+                        break;
+                    } finally {
+                        pageable.close();
+                    }
+                }
+            }));
+        }
+
+        // Every printer finishes the chunk it is spooling (nothing is interrupted); each failure has been added to the problems
+        boolean interrupted = false;
+        for (int i = 0; i < futures.size(); i++) {
+            while (true) {
+                try {
+                    futures.get(i).get();
+                    break;
+                } catch (InterruptedException e) { // No more chunks are started, but the ones being spooled are completed
+                    if (!interrupted) problems.add("Printing was interrupted");
+                    interrupted = true;
+                    stopped.set(true);
+                } catch (ExecutionException e) {
+                    problems.add(queues.get(i).name + ": printing failed (" + e.getCause() + "); no more pages were sent to it");
+                    break;
+                }
+            }
+        }
+        executor.shutdown();
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (next.get() < pgTotal) {
+            problems.add("pages " + (next.get() + 1) + "-" + pgTotal + " were not printed");
+        }
+    }
+
+    // Failures reported by print() (empty = every page was spooled)
+    public List<String> getProblems() {
+        synchronized (problems) {
+            return new ArrayList<>(problems);
+        }
+    }
+
+    // Pages and jobs spooled to each printer; e.g. "    LaserJet-1: 60 pages in 6 jobs"
+    public String getSummary() {
+        StringBuilder sb = new StringBuilder();
+        for (Queue queue : queues) {
+            sb.append(String.format("    %s: %,d pages in %,d job%s%n", queue.name, queue.pages.get(), queue.jobs.get(), queue.jobs.get() == 1 ? "" : "s"));
+        }
+        return sb.toString();
+    }
+
+    // A printer (print service) or a stand-in that prints to PostScript files
+    public static class Queue {
+        private final String name;
+        private final PrintService service; // null = stand-in
+        private final String filePrefix; // Path and name of the stand-in's files (null = a real printer)
+        private final AtomicInteger pages = new AtomicInteger(); // Pages spooled so far
+        private final AtomicInteger jobs = new AtomicInteger(); // Chunks spooled so far
+
+        private Queue(String name, PrintService service, String filePrefix) {
+            this.name = name;
+            this.service = service;
+            this.filePrefix = filePrefix;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        // The printer's default resolution (dots per inch; 0 = unknown or a stand-in)
+        public int getResolution() {
+            return service == null ? 0 : SheetPageable.getDeviceResolution(service, null);
+        }
+
+        // Sends the pages to this printer as one print job (no dialog); returns once it is spooled
+        private void spool(Pageable pageable, String jobName, int first, int count) throws PrinterException, IOException {
+            PrinterJob job = PrinterJob.getPrinterJob();
+            job.setJobName(jobName);
+            job.setPageable(pageable);
+
+            if (service != null) {
+                job.setPrintService(service);
+                job.print();
+                return;
+            }
+
+            StreamPrintServiceFactory[] factories = PrinterJob.lookupStreamPrintServices("application/postscript");
+            if (factories.length == 0) {
+                throw new PrinterException("No PostScript stream print service is available for the stand-in queue");
+            }
+            File file = new File(String.format("%s-%04d-%04d.ps", filePrefix, first + 1, first + count));
+            try (OutputStream out = new FileOutputStream(file)) {
+                StreamPrintService stream = factories[0].getPrintService(out);
+                try {
+                    job.setPrintService(stream);
+                    job.print();
+                } finally {
+                    stream.dispose();
+                }
+            }
+            JobStats.addBytes(file.length());
+        }
+    }
+}
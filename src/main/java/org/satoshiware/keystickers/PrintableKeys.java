@@ -27,4 +27,16 @@ public interface PrintableKeys extends Printable {
 
     String getPrivateKey(int index);
     String getPublicKey(int index);
+
+    DisplayList compile(int page); // Immutable drawing operations for the page; print() replays it
+
+    // Text of the slot's address QR code (before QREncoder puts Bech32 in uppercase); e.g. a Satoshi Coin's carries its amount
+    default String getAddressQRText(int index) {
+        return getPublicKey(index);
+    }
+
+    // True if the slot's private key could not be printed in full (the sheet marks it VOID); its address must never be funded
+    default boolean isVoid(int index) {
+        return false;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,80 @@
+/*
+ *      QR encoding for the sheets. ZXing's Encoder picks the densest mode the
+ *      text allows (numeric, alphanumeric, or byte) and the smallest version
+ *      that holds it at the requested error correction level; the result is
+ *      copied straight into a BitMatrix (one bit per module, no margin), with
+ *      no hint maps or writers created per code.
+ *
+ *      Bech32 addresses are case insensitive, so encodeAddress() puts them in
+ *      the QR code in uppercase. Uppercase letters and digits fit alphanumeric
+ *      mode (5.5 bits per character instead of 8), which often means a smaller
+ *      version: fewer modules to draw, and bigger ones at the same printed
+ *      size. The code reads back as exactly the uppercase text, which is the
+ *      same address. Everything else (e.g. WIF private keys, which are case
+ *      sensitive) is encoded exactly as it is.
+ *
+ *      This program is free software: you can redistribute it and/or modify
+ *      it under the terms of the GNU General Public License as published by
+ *      the Free Software Foundation, either version 3 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License
+ *      along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.satoshiware.keystickers;
+
+import com.google.zxing.WriterException;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+import com.google.zxing.qrcode.encoder.ByteMatrix;
+import com.google.zxing.qrcode.encoder.Encoder;
+
+import java.util.Locale;
+
+public final class QREncoder {
+    private static final String ALPHANUMERIC = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ $%*+-./:"; // Characters of QR alphanumeric mode
+
+    private QREncoder() {
+    }
+
+    // QR code of the text exactly as it is (densest mode and smallest version for the level)
+    public static BitMatrix encode(String text, ErrorCorrectionLevel level) throws WriterException {
+        ByteMatrix modules = Encoder.encode(text, level).getMatrix();
+
+        BitMatrix m = new BitMatrix(modules.getWidth(), modules.getHeight());
+        for (int y = 0; y < modules.getHeight(); y++) {
+            for (int x = 0; x < modules.getWidth(); x++) {
+                if (modules.get(x, y) == 1) m.set(x, y);
+            }
+        }
+        return m;
+    }
+
+    // QR code of a Bech32 address, optionally followed by a space and an amount (e.g. "bc1q... 1000000")
+    public static BitMatrix encodeAddress(String text, ErrorCorrectionLevel level) throws WriterException {
+        return encode(getAddressText(text), level);
+    }
+
+    // The text encodeAddress() puts in the QR code: uppercase if it is a lowercase Bech32 address (and amount), else unchanged
+    public static String getAddressText(String text) {
+        int space = text.indexOf(' ');
+        String address = space < 0 ? text : text.substring(0, space);
+
+        int separator = address.lastIndexOf('1');
+        if (separator < 1) return text;
+        for (int i = separator + 1; i < address.length(); i++) {
+            if (Bech32.CHARSET.indexOf(address.charAt(i)) < 0) return text; // Not Bech32 (or not lowercase)
+        }
+
+        String upper = text.toUpperCase(Locale.ROOT);
+        for (int i = 0; i < text.length(); i++) {
+            if (Character.isUpperCase(text.charAt(i)) || ALPHANUMERIC.indexOf(upper.charAt(i)) < 0) return text;
+        }
+        return upper;
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ *      Headless alternative to the print dialog. Each page is rasterized to a
+ *      1-bit image at the chosen resolution and written to its own file (PNG,
+ *      PBM, or TIFF), ready to be handed to CUPS (e.g. "lp -o fit-to-page").
+ *      Pages are rendered in parallel, but only a few are held in memory at a
+ *      time; each one is written to disk and dropped as soon as it is done.
+ *
+ *      A page is drawn in greyscale, a band at a time, and halftoned to black
+ *      and white the way a printer would: black and white are kept exactly,
+ *      and a grey (e.g. the private keys' darkness) becomes an ordered dither
+ *      of black dots covering the same share of the area, so it is lightened
+ *      rather than lost. SheetVerifier scans back QR codes drawn the same way.
+ *
+ *      Remember: these files contain private keys! Shred them after printing.
+ *
+ *      This program is free software: you can redistribute it and/or modify
+ *      it under the terms of the GNU General Public License as published by
+ *      the Free Software Foundation, either version 3 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License
+ *      along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.satoshiware.keystickers;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.print.PageFormat;
+import java.awt.print.Pageable;
+import java.awt.print.Printable;
+import java.awt.print.PrinterException;
+import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RasterExport {
+    public enum Format {
+        PNG("png"), PBM("pbm"), TIFF("tif");
+
+        private final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+
+        public String getExtension() {
+            return extension;
+        }
+    }
+
+    public static double HEAPSHARE = 0.25; // Share of the maximum heap the page images being exported may take (and, separately, those being scanned back)
+
+    private static final int BANDPIXELS = 16 << 20; // Greyscale pixels (one byte each) drawn at a time; a page is drawn in bands of this size
+    private static final int[] DITHER = { // 8x8 Bayer matrix; a grey level above the threshold at a pixel's place on the page is white
+            0, 32, 8, 40, 2, 34, 10, 42,
+            48, 16, 56, 24, 50, 18, 58, 26,
+            12, 44, 4, 36, 14, 46, 6, 38,
+            60, 28, 52, 20, 62, 30, 54, 22,
+            3, 35, 11, 43, 1, 33, 9, 41,
+            51, 19, 59, 27, 49, 17, 57, 25,
+            15, 47, 7, 39, 13, 45, 5, 37,
+            63, 31, 55, 23, 61, 29, 53, 21};
+
+    private static final VarHandle LEVELS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.nativeOrder()); // 8 grey levels at once
+
+    static {
+        for (int i = 0; i < DITHER.length; i++) {
+            DITHER[i] = DITHER[i] * 4 + 2; // Thresholds 2 through 254: black (0) always stays black and white (255) always white
+        }
+    }
+
+    // Draws on a page in device pixels (user space = pixels, white background, color black). It is called once for each band.
+    interface Painter {
+        void paint(Graphics2D g) throws PrinterException;
+    }
+
+    private final File directory; // Output directory; one file per page
+    private final Format format;
+    private final int dpi; // Resolution of the output images (e.g. 600, 1200, or 2400)
+    private final int threads; // Most pages rendered at once (fewer if their images would not fit in HEAPSHARE of the heap)
+
+    private long bytesWritten; // Total size of all the files written
+
+    public RasterExport(File directory, Format format, int dpi) {
+        this(directory, format, dpi, Runtime.getRuntime().availableProcessors());
+    }
+
+    public RasterExport(File directory, Format format, int dpi, int threads) {
+        if (dpi < 72 || threads < 1) {
+            throw new IllegalArgumentException("RasterExport requires at least 72 DPI and one thread");
+        }
+
+        this.directory = directory;
+        this.format = format;
+        this.dpi = dpi;
+        this.threads = threads;
+    }
+
+    // Renders and writes every page; pages are requested from the pageable in order. Returns the files written.
+    public List<File> export(Pageable pageable, String prefix) throws IOException, PrinterException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create the directory \"" + directory + "\"");
+        }
+
+        int pages = threads;
+        if (pageable.getNumberOfPages() > 0) { // Every page of a job has the same format
+            PageFormat pf = pageable.getPageFormat(0);
+            pages = getPagesInMemory(getPixels(pf.getWidth()), getPixels(pf.getHeight()), threads);
+        }
+
+        final AtomicInteger index = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(pages, r -> {
+            Thread t = new Thread(r, "RasterExport-" + index.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        Semaphore inFlight = new Semaphore(pages); // Bounds the number of page images in memory
+
+        List<File> files = new ArrayList<>();
+        List<Future<Long>> futures = new ArrayList<>();
+        try {
+            for (int i = 0; i < pageable.getNumberOfPages(); i++) {
+                final int page = i;
+                final Printable printable = pageable.getPrintable(page);
+                final PageFormat pf = pageable.getPageFormat(page);
+                final File file = new File(directory, String.format("%s-%04d.%s", prefix, page + 1, format.getExtension()));
+                files.add(file);
+
+                inFlight.acquire();
+                futures.add(executor.submit(() -> {
+                    try {
+                        return write(render(printable, pf, page), file);
+                    } finally {
+                        inFlight.release();
+                    }
+                }));
+
+                // Surface failures early instead of after the whole run
+                while (!futures.isEmpty() && futures.get(0).isDone()) {
+                    bytesWritten += futures.remove(0).get();
+                }
+            }
+
+            for (Future<Long> future : futures) {
+                bytesWritten += future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Export was interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            if (e.getCause() instanceof PrinterException) throw (PrinterException) e.getCause();
+            throw new IOException("Export failed: " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return files;
+    }
+
+    // Rasterizes one page to a 1-bit (black and white) image; the image is in the page's orientation
+    public BufferedImage render(Printable printable, PageFormat pf, int page) throws PrinterException {
+        return rasterize(0, 0, getPixels(pf.getWidth()), getPixels(pf.getHeight()), g -> {
+            g.scale((double) dpi / 72, (double) dpi / 72); // Same user space (72 units per inch) a printer would give the sheet
+            g.setRenderingHint(DisplayList.DEVICERESOLUTION, dpi); // Snap to this image's pixels
+
+            if (printable.print(g, pf, page) != Printable.PAGE_EXISTS) {
+                throw new PrinterException("Page " + (page + 1) + " does not exist");
+            }
+        });
+    }
+
+    // Number of pages of width x height pixels that may be rasterized at once within HEAPSHARE of the heap (at least one, at most "wanted")
+    static int getPagesInMemory(int width, int height, int wanted) {
+        long budget = (long) (Runtime.getRuntime().maxMemory() * HEAPSHARE);
+        return (int) Math.max(1, Math.min(wanted, budget / getBytes(width, height)));
+    }
+
+    // Memory taken by rasterizing width x height pixels: the 1-bit image and its greyscale band
+    static long getBytes(int width, int height) {
+        return (long) (width + 7) / 8 * height + Math.min(BANDPIXELS, (long) width * height);
+    }
+
+    // Pixels across a length of the page (1/72 inch units) at this export's resolution
+    private int getPixels(double length) {
+        return (int) Math.round(length * dpi / 72);
+    }
+
+    // Rasterizes the part of a page from (left, top) that is width x height device pixels to a 1-bit image: drawn in greyscale a band at
+    // a time, then halftoned. Each pixel depends only on where it is on the page, so any part matches the same pixels of the whole page.
+    static BufferedImage rasterize(int left, int top, int width, int height, Painter painter) throws PrinterException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_BINARY);
+        byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData(); // 8 pixels per byte (first pixel in the high bit); 0 = black
+        int stride = (width + 7) / 8;
+
+        int rows = Math.max(1, Math.min(height, BANDPIXELS / Math.max(1, width)));
+        BufferedImage band = new BufferedImage(width, rows, BufferedImage.TYPE_BYTE_GRAY);
+        byte[] grey = ((DataBufferByte) band.getRaster().getDataBuffer()).getData();
+        for (int bandTop = 0; bandTop < height; bandTop += rows) {
+            Graphics2D g = band.createGraphics();
+            try {
+                g.setColor(Color.WHITE);
+                g.fillRect(0, 0, width, rows);
+                g.setColor(Color.BLACK);
+                g.translate(-left, -(top + bandTop));
+                painter.paint(g);
+            } finally {
+                g.dispose();
+            }
+
+            for (int y = bandTop; y < Math.min(height, bandTop + rows); y++) {
+                int in = (y - bandTop) * width;
+                int out = y * stride;
+                int dither = ((top + y) & 7) << 3;
+                for (int x = 0; x < width; x += 8) {
+                    if (x + 8 <= width) { // Most of a page is plain white or black: 8 pixels at a time
+                        long levels = (long) LEVELS.get(grey, in + x);
+                        if (levels == -1L) {
+                            pixels[out + (x >> 3)] = (byte) 0xFF;
+                            continue;
+                        } else if (levels == 0L) {
+                            pixels[out + (x >> 3)] = 0;
+                            continue;
+                        }
+                    }
+
+                    int bits = 0;
+                    for (int bit = 0; bit < 8 && x + bit < width; bit++) {
+                        int level = grey[in + x + bit] & 0xFF;
+                        if (level > DITHER[dither + ((left + x + bit) & 7)]) bits |= 0x80 >> bit;
+                    }
+                    pixels[out + (x >> 3)] = (byte) bits;
+                }
+            }
+        }
+
+        return image;
+    }
+
+    // Writes the image to the file and returns the number of bytes written
+    private long write(BufferedImage image, File file) throws IOException {
+        JobStats.StageEvent event = JobStats.begin(JobStats.Stage.SPOOL, -1);
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16)) {
+            switch (format) {
+                case PBM:
+                    writePBM(image, out);
+                    break;
+                case TIFF:
+                    writeTIFF(image, out);
+                    break;
+                default:
+                    if (!ImageIO.write(image, "png", out)) throw new IOException("No PNG writer available; use PBM");
+                    break;
+            }
+        }
+
+        long length = file.length();
+        JobStats.addBytes(length);
+        JobStats.end(event, 1);
+        return length;
+    }
+
+    // Bilevel TIFF with CCITT Group 4 (T.6) compression
+    private static void writeTIFF(BufferedImage image, OutputStream out) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("tiff");
+        if (!writers.hasNext()) {
+            throw new IOException("No TIFF writer available; use PNG or PBM");
+        }
+
+        ImageWriter writer = writers.next();
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionType("CCITT T.6");
+
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    // Binary Portable BitMap (P4). Rows are packed 8 pixels per byte exactly like TYPE_BYTE_BINARY, but 1 = black.
+    private static void writePBM(BufferedImage image, OutputStream out) throws IOException {
+        out.write(("P4\n" + image.getWidth() + " " + image.getHeight() + "\n").getBytes("US-ASCII"));
+
+        byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData(); // Palette: 0 = black, 1 = white
+        int stride = (image.getWidth() + 7) / 8;
+        byte[] row = new byte[stride];
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < stride; x++) {
+                row[x] = (byte) ~pixels[y * stride + x];
+            }
+            out.write(row);
+        }
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public int getDpi() {
+        return dpi;
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    public static Format parseFormat(String s) {
+        switch (s.trim().toLowerCase()) {
+            case "png":
+                return Format.PNG;
+            case "pbm":
+                return Format.PBM;
+            case "tif":
+            case "tiff":
+                return Format.TIFF;
+            default:
+                return null;
+        }
+    }
+}
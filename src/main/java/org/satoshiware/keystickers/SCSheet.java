@@ -18,21 +18,13 @@
  */
 package org.satoshiware.keystickers;
 
-import com.google.zxing.BarcodeFormat;
 import com.google.zxing.common.BitMatrix;
-import com.google.zxing.EncodeHintType;
-import com.google.zxing.qrcode.QRCodeWriter;
 import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
 import com.google.zxing.WriterException;
 
 import java.awt.*;
-import java.awt.Font;
-import java.awt.font.LineMetrics;
-import java.awt.font.TextAttribute;
-import java.awt.geom.AffineTransform;
 import java.awt.print.PageFormat;
 import java.awt.print.PrinterException;
-import java.text.AttributedString;
 
 import java.time.format.DateTimeFormatter;
 import java.time.LocalDateTime;
@@ -41,16 +33,18 @@ import java.util.*;
 
 public class SCSheet implements PrintableKeys {
     private static final int PPL = 8; // Stroke width: Controls line thickness for frames and borders.
-    private static final String[] PREFERREDFONTS = {"Liberation Serif", "Times New Roman"}; // Fonts ordered by priority.
-    private static final int FStyle = Font.PLAIN; // Style of the font (Font.PLAIN, Font.BOLD, Font.ITALIC, (Font.BOLD + Font.ITALIC))
 
     private static final int PPI = 2400; // Minimum 600 PPI to maintain good quality
     private static final double MARGIN = 0.35; // Printing margin (Inches)
     private static final int KEYTOTAL = 24; // Number of keys per Sheet
 
     public int satoshiAmount; // The amount of $atoshis that will be on the intended coins (initialized externally).
+    public LocalDateTime timestamp; // Date and time written on the sheet (null = the time it is compiled). Fixed for reproducible renders.
 
-    private String thisFont; // Font used for this sheet
+    private static DisplayList template; // Static artwork of the sheet (built by the first sheet that needs it)
+
+    private DisplayList displayList; // Compiled content of this sheet (null = not compiled yet)
+    private int compiledPage = -1; // Page index the display list was compiled for
 
     private final String[] fullPubKeyStr; // Stores the public keys for this sheet
     private final String[] fullPrivKeyStr; // Stores the private keys for this sheet
@@ -58,17 +52,6 @@ public class SCSheet implements PrintableKeys {
     private boolean tstFlag; // If any public or private key added is not for mainnet, this flag is set
                              // A Private Key QR will be included with each set of keys and they will be marked "Testing"
     public SCSheet() {
-        String[] fonts = GraphicsEnvironment.getLocalGraphicsEnvironment().getAvailableFontFamilyNames();
-        for(int j = 0; j < PREFERREDFONTS.length; j++) {
-            for(int i = 0; i < fonts.length; i++) {
-                if (fonts[i].equals(PREFERREDFONTS[j])) {
-                    thisFont = PREFERREDFONTS[j];
-                    j = PREFERREDFONTS.length;
-                    i = fonts.length;
-                }
-            }
-        }
-
         fullPubKeyStr = new String[KEYTOTAL];
         fullPrivKeyStr = new String[KEYTOTAL];
         for (int i = 0; i < KEYTOTAL; i++) {
@@ -90,69 +73,134 @@ public class SCSheet implements PrintableKeys {
             throw new PrinterException("SCSheet Java Class: All Printing Margins must be less than " + MARGIN + "\"");
         }
 
+        DisplayList dl = compile(page);
+
+        JobStats.StageEvent event = JobStats.begin(JobStats.Stage.RENDER, page);
         g.scale ((double) 72 / PPI, (double) 72 / PPI); // Cheap hack to change graphic resolution. java.awt.print is fixed at 72 PPI.
+        dl.replay(g);
+        JobStats.end(event, 1);
 
-        // Draw frames around each Satoshi Coin key
-        drawFrame(g);
+        return PAGE_EXISTS;
+    }
+
+    // Compiles the sheet (QR codes, fitted text, etc.) into a display list for the page.
+    // The same list is returned for every call with the same page; changing a key discards it.
+    public synchronized DisplayList compile(int page) {
+        if (displayList == null || compiledPage != page) {
+            JobStats.StageEvent event = JobStats.begin(JobStats.Stage.COMPILE, page);
+            displayList = build(page);
+            compiledPage = page;
+            JobStats.end(event, 1);
+        }
+
+        return displayList;
+    }
+
+    private DisplayList build(int page) {
+        DisplayList.Builder g = new DisplayList.Builder(PPI);
+
+        // Draw frames, circles, markers, and key numbers
+        g.drawTemplate(getTemplate());
 
         // Write sheet details: "SATOSHI COINS", Page #, Date, and Time
-        String sheetDetails = "           SATOSHI COINS                    PAGE: " + (page + 1) + "                     " + DateTimeFormatter.ofPattern("MM/dd/yyyy                     HH:mm:ss").format(LocalDateTime.now());
-        drawString(g, sheetDetails, (int)(0.5375 * PPI), (int)(MARGIN * PPI), 90, -(int)getAscent(g, sheetDetails, (int)((0.5375 - MARGIN) * PPI)),0, (int) ((0.5375 - MARGIN) * PPI));
+        String sheetDetails = "           SATOSHI COINS                    PAGE: " + (page + 1) + "                     " + DateTimeFormatter.ofPattern("MM/dd/yyyy                     HH:mm:ss").format(timestamp != null ? timestamp : LocalDateTime.now());
+        drawString(g, sheetDetails, (int)(0.5375 * PPI), (int)(MARGIN * PPI), 90, -(int)getAscent((int)((0.5375 - MARGIN) * PPI)),0, (int) ((0.5375 - MARGIN) * PPI));
 
         // Draw QR codes
         try {
             for (int i = 1; i <= 4; i++) {
                 for (int j = 0; j < 6; j++) {
-                    drawQR(g, new Point((int)((0.25 + (2.625 * i) + (i == 4 ? (0.25 - MARGIN) : 0) - 0.4) * PPI), (int)(((j == 0 ? MARGIN : 0.25) + (1.33 * j) + 0.4) * PPI)), (int)(0.6 * PPI), fullPubKeyStr[(i - 1) + (j * 4)] + " " + satoshiAmount);
+                    g.setPart(i + (j * 4), DisplayList.Part.ADDRESS);
+                    drawQR(g, new Point((int)((0.25 + (2.625 * i) + (i == 4 ? (0.25 - MARGIN) : 0) - 0.4) * PPI), (int)(((j == 0 ? MARGIN : 0.25) + (1.33 * j) + 0.4) * PPI)), (int)(0.6 * PPI), QREncoder.encodeAddress(getAddressQRText(i + (j * 4)), ErrorCorrectionLevel.M));
                 }
             }
         } catch (WriterException ignored) {
         }
+        g.setPart(0, DisplayList.Part.NONE);
 
         // Draw the address circumscribed within a circle and between two black dots.
         for (int i = 0; i < 4; i++) {
             for (int j = 0; j < 6; j++) {
                 final double offsetAddress = (0.93 + (2.625 * i) + (i == 0 ? 0.14 : 0)) * PPI;
+                g.setPart(1 + i + (j * 4), DisplayList.Part.ADDRESS);
                 circumscribeAddress(g, fullPubKeyStr[i + (j * 4)].substring(3, 12), (int) offsetAddress, (int)((0.44 + (1.33 * j)) * PPI));
-                g.drawOval((int) offsetAddress, (int)((0.44 + (1.33 * j)) * PPI), (int) (0.47 * PPI), (int)(0.47 * PPI));
-
-                final double offsetAddressMarkers = (1.105 + (2.625 * i) + (i == 0 ? 0.14 : 0)) * PPI;
-                g.fillOval((int) offsetAddressMarkers, (int)((0.44 + (1.33 * j)) * PPI), (int)(0.12 * PPI), (int)(0.12 * PPI));
-                g.fillOval((int) offsetAddressMarkers, (int)((0.79 + (1.33 * j)) * PPI), (int)(0.12 * PPI), (int)(0.12 * PPI));
 
                 if(tstFlag) { // Draw a QR of the private key if in test mode
-                    try { drawQR(g, new Point((int)((1.66 + (2.625 * i) + (i == 0 ? 0.14 : 0)) * PPI), (int)((0.675 + (1.33 * j)) * PPI)), (int)(0.4 * PPI), fullPrivKeyStr[i + (j * 4)]);} catch (WriterException ignored) {}
+                    g.setPart(1 + i + (j * 4), DisplayList.Part.PRIVATEKEY);
+                    try { drawQR(g, new Point((int)((1.66 + (2.625 * i) + (i == 0 ? 0.14 : 0)) * PPI), (int)((0.675 + (1.33 * j)) * PPI)), (int)(0.4 * PPI), QREncoder.encode(fullPrivKeyStr[i + (j * 4)], ErrorCorrectionLevel.M));} catch (WriterException ignored) {}
                 }
             }
         }
+        g.setPart(0, DisplayList.Part.NONE);
 
         // Split the private key into two and draw them circumscribed within two circles.
         for (int i = 0; i < 4; i++) {
             for (int j = 0; j < 6; j++) {
-                String[] s = splitPrivKeyString(g, fullPrivKeyStr[i + (j * 4)]);
+                String[] s = splitPrivKeyString(fullPrivKeyStr[i + (j * 4)]);
+                g.setPart(1 + i + (j * 4), DisplayList.Part.PRIVATEKEY);
 
                 final double offsetPrivateKey1 = (0.57 + (2.625 * i) + (i == 0 ? 0.14 : 0)) * PPI;
                 circumscribeKey12mmD0p08inTxt(g, "1•" + s[0], (int) offsetPrivateKey1, (int)((0.94 + (1.33 * j)) * PPI));
-                g.drawOval((int) offsetPrivateKey1, (int)((0.94 + (1.33 * j)) * PPI), (int)(0.47 * PPI), (int)(0.47 * PPI));
 
                 final double offsetPrivateKey2 = (1.29 + (2.625 * i) + (i == 0 ? 0.14 : 0)) * PPI;
                 circumscribeKey12mmD0p08inTxt(g, "2•" + s[1], (int) offsetPrivateKey2, (int)((0.94 + (1.33 * j)) * PPI));
-                g.drawOval((int) offsetPrivateKey2, (int)((0.94 + (1.33 * j)) * PPI), (int)(0.47 * PPI), (int)(0.47 * PPI));
             }
         }
+        g.setPart(0, DisplayList.Part.NONE);
 
         // Write verifying information for each key: truncated address, and $atoshi amount.
         for (int i = 1; i <= 4; i++) {
             for (int j = 0; j < 6; j++) {
                 final double textX = (0.25 + (2.625 * i) + (i == 4 ? (0.25 - MARGIN) : 0) - 0.7) * PPI;
                 final double textY = ((j == 0 ? MARGIN : 0.25) + (1.33 * j) + 0.8) * PPI;
+                g.setPart(i + (j * 4), DisplayList.Part.ADDRESS);
                 drawString(g, fullPubKeyStr[(i - 1) + (j * 4)].substring(3, 12), (int) textX, (int) textY, 0, 0, (int)(0.075 * PPI), (int)(0.12 * PPI));
+                g.setPart(0, DisplayList.Part.NONE);
                 drawString(g, String.format("%,d", satoshiAmount) + " $", (int) textX, (int) textY, 0, 0, (int)(0.225 * PPI), (int)(0.12 * PPI));
                 if(tstFlag) // Write "TESTNET" near the keys if in test mode
                     drawString(g, "TESTING", (int) textX, (int) textY, 0, 0, (int)(0.375 * PPI), (int)(0.12 * PPI));
             }
         }
 
+        return g.build();
+    }
+
+    // Artwork that is identical on every page; built once (per process) and shared by every sheet
+    private DisplayList getTemplate() {
+        synchronized (SCSheet.class) {
+            if (template == null) {
+                template = buildTemplate();
+            }
+
+            return template;
+        }
+    }
+
+    private DisplayList buildTemplate() {
+        DisplayList.Builder g = new DisplayList.Builder(PPI);
+        g.setColor(Color.BLACK);
+
+        // Draw frames around each Satoshi Coin key
+        drawFrame(g);
+
+        // Draw the circles (and the two black dots) for each address and the circles for each private key
+        for (int i = 0; i < 4; i++) {
+            for (int j = 0; j < 6; j++) {
+                final double offsetAddress = (0.93 + (2.625 * i) + (i == 0 ? 0.14 : 0)) * PPI;
+                g.drawOval((int) offsetAddress, (int)((0.44 + (1.33 * j)) * PPI), (int) (0.47 * PPI), (int)(0.47 * PPI));
+
+                final double offsetAddressMarkers = (1.105 + (2.625 * i) + (i == 0 ? 0.14 : 0)) * PPI;
+                g.fillOval((int) offsetAddressMarkers, (int)((0.44 + (1.33 * j)) * PPI), (int)(0.12 * PPI), (int)(0.12 * PPI));
+                g.fillOval((int) offsetAddressMarkers, (int)((0.79 + (1.33 * j)) * PPI), (int)(0.12 * PPI), (int)(0.12 * PPI));
+
+                final double offsetPrivateKey1 = (0.57 + (2.625 * i) + (i == 0 ? 0.14 : 0)) * PPI;
+                g.drawOval((int) offsetPrivateKey1, (int)((0.94 + (1.33 * j)) * PPI), (int)(0.47 * PPI), (int)(0.47 * PPI));
+
+                final double offsetPrivateKey2 = (1.29 + (2.625 * i) + (i == 0 ? 0.14 : 0)) * PPI;
+                g.drawOval((int) offsetPrivateKey2, (int)((0.94 + (1.33 * j)) * PPI), (int)(0.47 * PPI), (int)(0.47 * PPI));
+            }
+        }
+
         // Number the keys for each Satoshi Coins
         for (int i = 0; i < 4; i++) {
             for (int j = 0; j < 6; j++) {
@@ -160,29 +208,31 @@ public class SCSheet implements PrintableKeys {
             }
         }
 
-        return PAGE_EXISTS;
+        return g.build();
     }
 
     public int getKeyTotal() {
         return KEYTOTAL;
     }
 
-    public void setPublicKey(String text, int keyIndex) {
+    public synchronized void setPublicKey(String text, int keyIndex) {
         if (text == null) {
             throw new NullPointerException();
         }
         fullPubKeyStr[keyIndex - 1] = text;
+        displayList = null;
 
         if(!text.startsWith("bc1q")) {
             tstFlag = true;
         }
     }
 
-    public void setPrivateKey(String text, int keyIndex) {
+    public synchronized void setPrivateKey(String text, int keyIndex) {
         if (text == null) {
             throw new NullPointerException();
         }
         fullPrivKeyStr[keyIndex - 1] = text;
+        displayList = null;
 
         if(!(text.startsWith("L") || text.startsWith("K"))) {
             tstFlag = true;
@@ -197,6 +247,16 @@ public class SCSheet implements PrintableKeys {
         return fullPubKeyStr[keyIndex - 1];
     }
 
+    public String getAddressQRText(int keyIndex) {
+        return fullPubKeyStr[keyIndex - 1] + " " + satoshiAmount;
+    }
+
+    public boolean isVoid(int keyIndex) {
+        String[] s = splitPrivKeyString(fullPrivKeyStr[keyIndex - 1]);
+        String key1 = "1•" + s[0], key2 = "2•" + s[1]; // Exactly as circumscribeKey12mmD0p08inTxt() is given them
+        return keyLineEnds12mm(key1)[4] != key1.length() || keyLineEnds12mm(key2)[4] != key2.length();
+    }
+
     @Override
     public KSSheet clone() {
         try {
@@ -213,7 +273,7 @@ public class SCSheet implements PrintableKeys {
         }
     }
 
-    private void drawFrame(Graphics2D g) {
+    private void drawFrame(DisplayList.Builder g) {
         g.setStroke(new BasicStroke(PPL));
 
         // Draw Horizontal Lines
@@ -244,74 +304,44 @@ public class SCSheet implements PrintableKeys {
 
     }
 
-    private void drawQR(Graphics2D g, Point center, int size, String qrStr) throws WriterException {
-        final Map<EncodeHintType, Object> qrEncoding = new HashMap<>();
-        qrEncoding.put(EncodeHintType.ERROR_CORRECTION, ErrorCorrectionLevel.M); // L = ~7%, M = ~15%, Q = ~25%, H = ~30%
-        qrEncoding.put(EncodeHintType.MARGIN, 0);
-
-        BitMatrix m = (new QRCodeWriter()).encode(qrStr, BarcodeFormat.QR_CODE, 0, 0, qrEncoding);
-
-        int dotSize = size / m.getWidth(); // Integer division: the result is an integer and is truncated (fractional part thrown away). Not rounded to the closest integer.
-        double r = (double) (size % m.getWidth()) / (double) m.getWidth(); // Decimal remainder: used to help make the QR code the exact size.
-        Point start = new Point(center.x - (size / 2), center.y - (size / 2));
-
-        int xPixelCount = 0;
-        int xPixel;
-        for (int _x = 0; _x < m.getWidth(); _x++) {
-            xPixel = (int) (r * (double) (_x + 1)) - (int) (r * (double) _x);
-            int yPixelCount = 0;
-            int yPixel;
-            for (int _y = 0; _y < m.getWidth(); _y++) {
-                yPixel = (int) (r * (double) (_y + 1)) - (int) (r * (double) _y);
-                if (m.get(_x, _y)) {
-                    g.fillRect(start.x + (_x * dotSize) + xPixelCount, start.y + (_y * dotSize) + yPixelCount, dotSize + xPixel, dotSize + yPixel);
-                }
-                yPixelCount = yPixelCount + yPixel;
-            }
-            xPixelCount = xPixelCount + xPixel;
-        }
+    // Draws the QR code (see QREncoder) centered on the point; L = ~7%, M = ~15%, Q = ~25%, H = ~30% error correction
+    private void drawQR(DisplayList.Builder g, Point center, int size, BitMatrix m) {
+        g.drawQR(m, center.x - (size / 2), center.y - (size / 2), size);
     }
 
     // Adds text to the sheet at the desired location, orientation, and size
-    private void drawString(Graphics2D g, String text, int x, int y, double angle, int xOffset, int yOffset, int size) {
-        Font f = new Font(thisFont, FStyle, size);
-
-        AffineTransform affineTransform = new AffineTransform();
-        affineTransform.rotate(Math.toRadians(angle), 0, 0);
-        Font rF = f.deriveFont(affineTransform);
-
-        AttributedString as = new AttributedString(text);
-        as.addAttribute(TextAttribute.FONT, rF);
-        g.drawString(as.getIterator(), x + xOffset, y + yOffset);
+    private void drawString(DisplayList.Builder g, String text, int x, int y, double angle, int xOffset, int yOffset, int size) {
+        g.drawString(text, SheetFonts.get(size, angle), x + xOffset, y + yOffset);
     }
 
     // Gets the ascent from the font and its size; The recommended distance above the baseline for singled spaced text
-    private float getAscent(Graphics2D g, String text, int size) { // The distance from the baseline to the ascender line.
-        Font f = new Font(thisFont, FStyle, size);
-        LineMetrics lineMetrics = f.getLineMetrics(text, g.getFontRenderContext());
-        return lineMetrics.getAscent();
+    private float getAscent(int size) { // The distance from the baseline to the ascender line.
+        return SheetFonts.getAscent(size);
         // The ascent usually represents the the height of the capital letters of the text. Some characters can extend above the ascender line.
     }
 
     // Write the truncated address (tAddress) within the given circle.
-    private void circumscribeAddress(Graphics2D g, String tAddress, int x, int y) {
-        final int tAddressWidth = g.getFontMetrics(new Font(thisFont, FStyle, 192)).stringWidth(tAddress);
-        final float ascent = getAscent(g, tAddress, 192);
+    private void circumscribeAddress(DisplayList.Builder g, String tAddress, int x, int y) {
+        final int tAddressWidth = stringWidth(tAddress, 192);
+        final float ascent = getAscent(192);
 
         drawString(g, tAddress, x, y, 0, (1128 - tAddressWidth) / 2, (1128 / 2) + (int)(ascent / 4) - 192, 192);
         drawString(g, tAddress, x, y, 0, (1128 - tAddressWidth) / 2, (1128 / 2) + (int)(ascent / 4), 192);
         drawString(g, tAddress, x, y, 0, (1128 - tAddressWidth) / 2, (1128 / 2) + (int)(ascent / 4) + 192, 192);
     }
 
+    // Width of the text (rounded to the nearest unit) when drawn with this sheet's font at the given size
+    private int stringWidth(String text, int size) {
+        return SheetFonts.getAdvances(size).stringWidth(text);
+    }
+
     // Divides the private key string (by text length not character length) into two parts.
-    private String[] splitPrivKeyString(Graphics2D g, String key) {
+    private String[] splitPrivKeyString(String key) {
         String[] strArray = new String[2];
 
-        int targetWidth = g.getFontMetrics(new Font(thisFont, FStyle, PPI)).stringWidth(key) / 2;
+        int targetWidth = stringWidth(key, PPI) / 2;
 
-        int index = 0;
-        while (g.getFontMetrics(new Font(thisFont, FStyle, PPI)).stringWidth(key.substring(index)) > targetWidth)
-            index++;
+        int index = SheetFonts.getAdvances(PPI).fitEnd(key, targetWidth + 1); // First index where the rest of the key is no wider than the target
 
         if(index != 0) {
             strArray[0] = key.substring(0, index);
@@ -325,11 +355,29 @@ public class SCSheet implements PrintableKeys {
     }
 
     // Write the key (0.08" text) within a 12mm circle.
-    private void circumscribeKey12mmD0p08inTxt(Graphics2D g, String key, int x, int y) {
+    private void circumscribeKey12mmD0p08inTxt(DisplayList.Builder g, String key, int x, int y) {
         final int diameter = (int)(0.47 * PPI);
         final int txtSize = (int)(0.08 * PPI);
 
-        final float ascent = getAscent(g, key, txtSize);
+        final float ascent = getAscent(txtSize);
+
+        GlyphAdvances advances = SheetFonts.getAdvances(txtSize);
+        int[] ends = keyLineEnds12mm(key);
+        int begin = 0;
+        for(int i = 0; i < 5; i++) {
+            int end = ends[i];
+            if(end != begin)
+                drawString(g, key.substring(begin, end), x, y, 0, (diameter - advances.stringWidth(key, begin, end)) / 2, (diameter / 2) + (int)(ascent / 4) + (txtSize * (i - 2)), txtSize);
+            begin = end;
+        }
+        if(begin != key.length()) // Void the private key if it was not able to fit in the circle.
+            drawString(g, "***VOID***", x, y, 0, (diameter - stringWidth("***VOID***", txtSize * 2)) / 2, (diameter / 2) + (int)(ascent / 2), txtSize * 2);
+    }
+
+    // Where each of the 5 lines of the key (0.08" text) within a 12mm circle ends; the key fits if the last line ends with it.
+    private int[] keyLineEnds12mm(String key) {
+        final int diameter = (int)(0.47 * PPI);
+        final int txtSize = (int)(0.08 * PPI);
 
         int[] widths = new int[5]; // Maximum widths for each of the 5 lines of text
         widths[0] = (int)(diameter * 0.60) - txtSize;
@@ -338,17 +386,14 @@ public class SCSheet implements PrintableKeys {
         widths[3] = (int)(diameter * 0.85) - txtSize;
         widths[4] = (int)(diameter * 0.60) - txtSize;
 
+        GlyphAdvances advances = SheetFonts.getAdvances(txtSize);
+        int[] ends = new int[5];
+        int begin = 0;
         for(int i = 0; i < 5; i++) {
-            String s = "";
-            while (key.length() != 0 && g.getFontMetrics(new Font(thisFont, FStyle, txtSize)).stringWidth(s) <= widths[i]) {
-                s += key.substring(0, 1);
-                key = key.substring(1);
-            }
-
-            if(s.length() != 0)
-                drawString(g, s, x, y, 0, (diameter - g.getFontMetrics(new Font(thisFont, FStyle, txtSize)).stringWidth(s)) / 2, (diameter / 2) + (int)(ascent / 4) + (txtSize * (i - 2)), txtSize);
+            // Each line takes characters until it is wider than its maximum width (or the key runs out)
+            ends[i] = Math.min(key.length(), advances.fit(key, begin, "", widths[i] + 1) + 1);
+            begin = ends[i];
         }
-        if(key.length() != 0) // Void the private key if it was not able to fit in the circle.
-            drawString(g, "***VOID***", x, y, 0, (diameter - g.getFontMetrics(new Font(thisFont, FStyle, txtSize * 2)).stringWidth("***VOID***")) / 2, (diameter / 2) + (int)(ascent / 2), txtSize * 2);
+        return ends;
     }
 }
\ No newline at end of file
@@ -0,0 +1,110 @@
+/*
+ *      Process-wide font registry shared by all the sheets. The font family is
+ *      resolved once (enumerating the installed font families is very slow on
+ *      some systems, e.g. the Raspberry Pi) and every Font instance is created
+ *      once per size and rotation and then reused. Fonts are immutable, so the
+ *      cached instances are safe to share between threads.
+ *
+ *      This program is free software: you can redistribute it and/or modify
+ *      it under the terms of the GNU General Public License as published by
+ *      the Free Software Foundation, either version 3 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License
+ *      along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.satoshiware.keystickers;
+
+import java.awt.Font;
+import java.awt.GraphicsEnvironment;
+import java.awt.geom.AffineTransform;
+import java.util.concurrent.ConcurrentHashMap;
+
+public final class SheetFonts {
+    private static final String[] PREFERREDFONTS = {"Liberation Serif", "Times New Roman"}; // Fonts ordered by priority.
+    private static final int FStyle = Font.PLAIN; // Style of the font (Font.PLAIN, Font.BOLD, Font.ITALIC, (Font.BOLD + Font.ITALIC))
+
+    private static final ConcurrentHashMap<Long, Font> fonts = new ConcurrentHashMap<>(); // Keyed by size and rotation (see key())
+    private static final ConcurrentHashMap<Integer, Float> ascents = new ConcurrentHashMap<>(); // Keyed by size
+    private static final ConcurrentHashMap<Integer, GlyphAdvances> advances = new ConcurrentHashMap<>(); // Keyed by size
+
+    private SheetFonts() {}
+
+    // The family is looked up the first time it is needed (class initialization is thread safe)
+    private static class Family {
+        private static final String NAME = resolve();
+
+        // First of the preferred fonts that is installed; null = the java logical font "Default"
+        private static String resolve() {
+            String[] families = GraphicsEnvironment.getLocalGraphicsEnvironment().getAvailableFontFamilyNames();
+            for (String preferred : PREFERREDFONTS) {
+                for (String family : families) {
+                    if (family.equals(preferred)) {
+                        return preferred;
+                    }
+                }
+            }
+
+            return null;
+        }
+    }
+
+    // Name of the font family used by every sheet (null if none of the preferred fonts are installed)
+    public static String getFamily() {
+        return Family.NAME;
+    }
+
+    // Upright font at the given size
+    public static Font get(int size) {
+        return get(size, 0);
+    }
+
+    // Font at the given size rotated (clockwise) by the given angle in degrees
+    public static Font get(int size, double angle) {
+        Font f = fonts.get(key(size, angle));
+        if (f != null) return f;
+
+        if (angle == 0) {
+            f = new Font(Family.NAME, FStyle, size);
+        } else {
+            AffineTransform affineTransform = new AffineTransform();
+            affineTransform.rotate(Math.toRadians(angle), 0, 0);
+            f = get(size, 0).deriveFont(affineTransform);
+        }
+
+        Font previous = fonts.putIfAbsent(key(size, angle), f); // Another thread may have created it first
+        return previous != null ? previous : f;
+    }
+
+    // Ascent of the (upright) font at the given size; the recommended distance above the baseline for singled spaced text
+    public static float getAscent(int size) {
+        Float ascent = ascents.get(size);
+        if (ascent == null) {
+            ascent = get(size).getLineMetrics("", DisplayList.FRC).getAscent();
+            ascents.putIfAbsent(size, ascent);
+        }
+
+        return ascent;
+    }
+
+    // Advance width table of the (upright) font at the given size; used to measure and fit text
+    public static GlyphAdvances getAdvances(int size) {
+        GlyphAdvances table = advances.get(size);
+        if (table == null) {
+            table = new GlyphAdvances(get(size));
+            GlyphAdvances previous = advances.putIfAbsent(size, table);
+            if (previous != null) table = previous;
+        }
+
+        return table;
+    }
+
+    private static long key(int size, double angle) {
+        return ((long) size << 32) | (Float.floatToIntBits((float) angle) & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ *      A java.awt.print.Pageable that generates its sheets on demand. Sheet N
+ *      is created (and its keys derived) only when the printer asks for page N
+ *      or when page N falls within a small look-ahead window. Sheets that have
+ *      been spooled are discarded, so memory use is flat regardless of the
+ *      number of pages and printing starts as soon as the first sheet is ready.
+ *      Each sheet is also compiled into its display list in the background
+ *      and, if VERIFY is set, scanned back (see SheetVerifier) before it can
+ *      be handed out; a sheet that fails is never printed.
+ *
+ *      If a funding manifest is set, each page's addresses are written to it
+ *      the first time the page is handed out.
+ *
+ *      A pageable may also hold just part of a larger job (see PrintFanOut):
+ *      its page 0 is then page firstPage of the job, and that is the number
+ *      each sheet is compiled, verified, and recorded with.
+ *
+ *      If the printer's resolution is set, each sheet is told of it (see
+ *      DisplayList.DEVICERESOLUTION) so it is drawn on the printer's pixels.
+ *
+ *      Pages must be requested in order. The last KEEPBEHIND pages handed out
+ *      are kept, so a printer may ask for them again (banding, probing, or a
+ *      retried page). Any page before those is discarded: asking for it again
+ *      (e.g. collated copies) fails with a PrinterException naming the cause,
+ *      since its keys no longer exist.
+ *
+ *      This program is free software: you can redistribute it and/or modify
+ *      it under the terms of the GNU General Public License as published by
+ *      the Free Software Foundation, either version 3 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License
+ *      along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.satoshiware.keystickers;
+
+import javax.print.PrintService;
+import javax.print.attribute.AttributeSet;
+import javax.print.attribute.standard.PrinterResolution;
+import java.awt.Graphics2D;
+import java.awt.print.PageFormat;
+import java.awt.print.Pageable;
+import java.awt.print.Printable;
+import java.awt.print.PrinterException;
+import java.util.TreeMap;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+public class SheetPageable implements Pageable {
+    public static int LOOKAHEAD = 4; // Number of sheets generated in advance of the page being printed
+    public static int KEEPBEHIND = 2; // Number of sheets kept after the page being printed, in case the printer asks for them again
+    public static boolean VERIFY = true; // Scan back every sheet (its QR codes, keys, and text) before it is handed out
+
+    private final KeyPipeline pipeline; // Fills the key slots of each new sheet
+    private final Supplier<PrintableKeys> factory; // Creates an empty (but fully configured) sheet
+    private final PageFormat pf; // Page format used for each printed sheet
+    private final int firstPage; // Page of the whole job that page 0 of this pageable is
+    private final int pgTotal; // Number of pages in this job (or this part of it)
+    private final int lookAhead;
+    private final SheetVerifier verifier; // Checks each sheet once it is compiled (null = no verification)
+
+    private final TreeMap<Integer, Future<PrintableKeys>> sheets = new TreeMap<>(); // Sheets in the window; keyed by page index
+    private int discarded; // Every page index below this value has been spooled and discarded
+    private FundingManifest manifest; // Receives the addresses of each page handed out (null = none)
+    private int recorded; // Every page index below this value has been written to the manifest
+    private int lastHandedOut = -1; // Highest page index handed out (to the printer or file) so far
+    private int handedOut; // Number of different pages handed out so far
+    private volatile int deviceResolution; // Dots per inch of the printer (0 = unknown)
+
+    public SheetPageable(KeyPipeline pipeline, Supplier<PrintableKeys> factory, PageFormat pf, int pgTotal) {
+        this(pipeline, factory, pf, pgTotal, LOOKAHEAD);
+    }
+
+    public SheetPageable(KeyPipeline pipeline, Supplier<PrintableKeys> factory, PageFormat pf, int pgTotal, int lookAhead) {
+        this(pipeline, factory, pf, 0, pgTotal, lookAhead);
+    }
+
+    public SheetPageable(KeyPipeline pipeline, Supplier<PrintableKeys> factory, PageFormat pf, int firstPage, int pgTotal, int lookAhead) {
+        if (firstPage < 0 || pgTotal < 0 || lookAhead < 0) {
+            throw new IllegalArgumentException("SheetPageable requires a non-negative first page, page total, and look-ahead");
+        }
+
+        this.pipeline = pipeline;
+        this.factory = factory;
+        this.pf = pf;
+        this.firstPage = firstPage;
+        this.pgTotal = pgTotal;
+        this.lookAhead = lookAhead;
+        this.verifier = VERIFY ? new SheetVerifier() : null;
+
+        schedule(0); // Start generating while the print dialog is still open
+    }
+
+    public int getNumberOfPages() {
+        return pgTotal;
+    }
+
+    public int getFirstPage() {
+        return firstPage;
+    }
+
+    public PageFormat getPageFormat(int pageIndex) throws IndexOutOfBoundsException {
+        checkIndex(pageIndex);
+        return pf;
+    }
+
+    public Printable getPrintable(int pageIndex) throws IndexOutOfBoundsException {
+        synchronized (this) {
+            checkIndex(pageIndex);
+            if (pageIndex < discarded) { // Reported by the print system once it tries to print the page
+                return (g, pf, page) -> {
+                    throw new PrinterException(getDiscardedMessage(pageIndex));
+                };
+            }
+        }
+
+        PrintableKeys sheet = getSheet(pageIndex);
+        int dpi = deviceResolution;
+        if (firstPage == 0 && dpi == 0) {
+            return sheet;
+        }
+
+        return (g, pf, page) -> {
+            if (dpi > 0) ((Graphics2D) g).setRenderingHint(DisplayList.DEVICERESOLUTION, dpi);
+            return sheet.print(g, pf, firstPage + page); // The printer counts from 0 within this part of the job
+        };
+    }
+
+    // Sets the resolution (dots per inch) of the printer the sheets are printed on (0 = unknown; nothing is snapped)
+    public void setDeviceResolution(int dpi) {
+        if (dpi < 0) {
+            throw new IllegalArgumentException("SheetPageable requires a non-negative resolution");
+        }
+
+        deviceResolution = dpi;
+    }
+
+    // Resolution (dots per inch) the printer will print at: the one requested, else the printer's default (0 = unknown)
+    public static int getDeviceResolution(PrintService service, AttributeSet attributes) {
+        Object resolution = attributes == null ? null : attributes.get(PrinterResolution.class);
+        if (resolution == null && service != null) {
+            resolution = service.getDefaultAttributeValue(PrinterResolution.class);
+        }
+        if (!(resolution instanceof PrinterResolution)) {
+            return 0;
+        }
+
+        int[] dpi = ((PrinterResolution) resolution).getResolution(PrinterResolution.DPI);
+        return dpi[0] == dpi[1] ? dpi[0] : 0; // Pixels that are not square are left alone
+    }
+
+    // Returns the sheet for the page, waiting for its keys if necessary. The sheets more than KEEPBEHIND pages before it are discarded.
+    public PrintableKeys getSheet(int pageIndex) throws IndexOutOfBoundsException {
+        Future<PrintableKeys> sheet;
+        synchronized (this) {
+            checkIndex(pageIndex);
+            if (pageIndex < discarded) {
+                throw new IndexOutOfBoundsException(getDiscardedMessage(pageIndex));
+            }
+
+            discarded = Math.max(discarded, pageIndex - KEEPBEHIND);
+            sheets.headMap(discarded).clear(); // The printer has moved on; these pages are spooled.
+
+            schedule(pageIndex);
+            sheet = sheets.get(pageIndex);
+        }
+
+        if (sheet.isDone()) {
+            return record(pageIndex, KeyPipeline.await(sheet));
+        }
+
+        JobStats.StageEvent event = JobStats.begin(JobStats.Stage.WAIT, firstPage + pageIndex); // The output has caught up with the key generation
+        try {
+            return record(pageIndex, KeyPipeline.await(sheet));
+        } finally {
+            JobStats.end(event, 1);
+        }
+    }
+
+    // Writes the addresses of each page handed out to the funding manifest (null = none); set it before the first page is requested
+    public synchronized void setManifest(FundingManifest manifest) {
+        this.manifest = manifest;
+    }
+
+    // Counts the page as handed out and writes the sheet to the manifest unless the page has already been written (e.g. the printer asked for it again)
+    private synchronized PrintableKeys record(int pageIndex, PrintableKeys sheet) {
+        if (pageIndex > lastHandedOut) { // Pages come in order, but the printer may skip some (a page range) or ask for one again
+            lastHandedOut = pageIndex;
+            handedOut++;
+        }
+        if (manifest != null && pageIndex >= recorded) {
+            manifest.write(firstPage + pageIndex, sheet);
+            recorded = pageIndex + 1;
+        }
+        return sheet;
+    }
+
+    // Number of pages handed out so far (e.g. fewer than getNumberOfPages() if only a page range was printed or the job was cancelled)
+    public synchronized int getPagesHandedOut() {
+        return handedOut;
+    }
+
+    // Cancels any sheets still being generated and drops everything in the window
+    public synchronized void close() {
+        for (Future<PrintableKeys> sheet : sheets.values()) {
+            sheet.cancel(false);
+        }
+        sheets.clear();
+        discarded = pgTotal;
+    }
+
+    // Makes sure the pages from pageIndex through pageIndex + lookAhead are generated (or being generated)
+    private synchronized void schedule(int pageIndex) {
+        for (int i = pageIndex; i <= pageIndex + lookAhead && i < pgTotal; i++) {
+            if (!sheets.containsKey(i)) {
+                final int page = firstPage + i;
+                sheets.put(i, pipeline.submit(factory.get(), sheet -> {
+                    sheet.compile(page);
+                    if (verifier != null) verifier.check(sheet, page);
+                }));
+            }
+        }
+    }
+
+    // Number of sheets currently held in memory (generated or in progress)
+    public synchronized int getWindowSize() {
+        return sheets.size();
+    }
+
+    private String getDiscardedMessage(int pageIndex) {
+        return "Page " + (firstPage + pageIndex + 1) + " was requested again after it had been printed and discarded; its keys no longer exist (print a single, uncollated copy)";
+    }
+
+    private void checkIndex(int pageIndex) {
+        if (pageIndex < 0 || pageIndex >= pgTotal) {
+            throw new IndexOutOfBoundsException("Page " + (pageIndex + 1) + " does not exist; this job has " + pgTotal + " pages");
+        }
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ *      Scan-back verification of a compiled sheet before it is printed. The
+ *      page is rasterized offscreen at DPI dots per inch (about the resolution
+ *      of the printer, or that of an image export) exactly as RasterExport
+ *      draws it, greys halftoned included, so the pixels checked are the ones
+ *      an export writes. Every QR code on it is cut out and decoded with
+ *      ZXing's reader, just as a phone would see it; a grey code is also read
+ *      shrunk, each block of pixels averaged back into its grey, as a camera
+ *      sees the printed dots. A private key too light to read fails. For each
+ *      slot:
+ *
+ *          - the private key (WIF) is decoded and its address re-derived with
+ *            KSKey (BitcoinJ), independently of the KeyPipeline derivation;
+ *          - each address QR code must decode to exactly the sheet's address
+ *            QR text (PrintableKeys.getAddressQRText; a Satoshi Coin's carries
+ *            the sheet's amount), in the uppercase form QREncoder gives Bech32,
+ *            and each private key QR code to the slot's private key;
+ *          - the private key text around the QR code (or in the circles) must
+ *            spell out the private key; a key printed VOID (it did not fit)
+ *            fails, since that sticker or coin is unusable;
+ *          - every piece of address text must be part of the slot's address,
+ *            in order.
+ *
+ *      The sheets mark which key slot (and part) each operation draws with
+ *      DisplayList.Builder.setPart(). Any QR code that is not marked is also
+ *      reported. Problems never include the private key itself.
+ *
+ *      This program is free software: you can redistribute it and/or modify
+ *      it under the terms of the GNU General Public License as published by
+ *      the Free Software Foundation, either version 3 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License
+ *      along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.satoshiware.keystickers;
+
+import com.google.zxing.*;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.common.GlobalHistogramBinarizer;
+import com.google.zxing.common.HybridBinarizer;
+import com.google.zxing.qrcode.QRCodeReader;
+import org.bitcoinj.core.Base58;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.print.PrinterException;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+public class SheetVerifier {
+    public static int DPI = 600; // Resolution of the offscreen scan; at lower resolutions the modules of the smaller QR codes become too uneven to decode
+    public static double PAGEWIDTH = 11.0; // Page size (inches) in the sheets' coordinates: Letter, landscape
+    public static double PAGEHEIGHT = 8.5;
+
+    private static final int QUIETZONE = 4; // White modules around each QR code cut out of the page
+    private static final int HALFTONE = 4; // Pixels across each block averaged to see a halftone as its grey (each 4 x 4 quarter of RasterExport's dither pattern spans its thresholds evenly)
+    private static final byte MAINNET = (byte) 0x80; // WIF version bytes
+    private static final byte TESTNET = (byte) 0xEF;
+
+    private static final int MEGABYTES = (int) Math.max(1, Runtime.getRuntime().maxMemory() * RasterExport.HEAPSHARE / (1 << 20)); // Heap the scans may take
+    private static final Semaphore MEMORY = new Semaphore(MEGABYTES); // Megabytes left for the scans running at once (by every verifier)
+
+    // Verifies the page; throws an IllegalStateException naming every slot that failed so the page is never printed
+    public void check(PrintableKeys sheet, int page) {
+        List<String> problems = verify(sheet, page);
+        if (!problems.isEmpty()) {
+            throw new IllegalStateException("Page " + (page + 1) + " FAILED the scan-back verification (" + String.join("; ", problems) + "); it was not printed");
+        }
+    }
+
+    // Returns every problem found on the page (empty = every slot checks out)
+    public List<String> verify(PrintableKeys sheet, int page) {
+        JobStats.StageEvent event = JobStats.begin(JobStats.Stage.VERIFY, page);
+        try {
+            DisplayList list = sheet.compile(page);
+            Capture capture = new Capture();
+            list.render(capture);
+
+            List<String> problems = new ArrayList<>();
+            if (capture.untagged > 0) {
+                problems.add(capture.untagged + " QR code(s) not belonging to any slot");
+            }
+
+            Map<QR, String> texts = scan(list, capture.slots.values());
+            for (int slot = 1; slot <= sheet.getKeyTotal(); slot++) {
+                checkSlot(slot, sheet.getPublicKey(slot), sheet.getPrivateKey(slot), sheet.getAddressQRText(slot), capture.slots.get(slot), texts, problems);
+            }
+            for (int slot : capture.slots.keySet()) {
+                if (slot < 1 || slot > sheet.getKeyTotal()) problems.add("slot " + slot + ": drawn but the sheet has only " + sheet.getKeyTotal() + " slots");
+            }
+
+            return problems;
+        } finally {
+            JobStats.end(event, 1);
+        }
+    }
+
+    private void checkSlot(int slot, String address, String privateKey, String addressQR, Slot drawn, Map<QR, String> texts, List<String> problems) {
+        String prefix = "slot " + slot + ": ";
+        if (drawn == null) {
+            problems.add(prefix + "nothing was drawn");
+            return;
+        }
+
+        String derived = derive(privateKey, address.substring(0, Math.max(0, address.lastIndexOf('1'))));
+        if (derived == null) {
+            problems.add(prefix + "the private key is not a valid (compressed) WIF");
+        } else if (!derived.equals(address)) {
+            problems.add(prefix + "the address " + address + " does not belong to the private key");
+        }
+
+        String qrText = QREncoder.getAddressText(addressQR); // Exactly what the address QR code must hold (Bech32 in uppercase, and any amount)
+        for (QR qr : drawn.qrs) {
+            String text = texts.get(qr);
+            if (qr.part == DisplayList.Part.ADDRESS) {
+                if (text == null) {
+                    problems.add(prefix + "the address QR code is unreadable");
+                } else if (!text.equals(qrText)) {
+                    problems.add(prefix + "the address QR code does not match " + addressQR); // What it reads could be a private key, so it is not shown
+                }
+            } else {
+                if (text == null) {
+                    problems.add(prefix + "the private key QR code is unreadable");
+                } else if (!text.equals(privateKey)) {
+                    problems.add(prefix + "the private key QR code does not match the private key");
+                }
+            }
+        }
+        if (drawn.qrs.stream().noneMatch(qr -> qr.part == DisplayList.Part.ADDRESS)) {
+            problems.add(prefix + "there is no address QR code");
+        }
+
+        // The private key may be split over several runs of text, each marked with a bullet ("•", "1•", or "2•")
+        String keyText = String.join("", drawn.privateKeyText).replaceAll("\\d?•|\\s", "");
+        if (drawn.privateKeyText.isEmpty()) {
+            problems.add(prefix + "there is no private key text");
+        } else if (keyText.contains("VOID")) {
+            problems.add(prefix + "the private key did not fit and is printed VOID (the slot is unusable)");
+        } else if (!keyText.equals(privateKey)) {
+            problems.add(prefix + "the private key text does not match the private key");
+        }
+
+        for (String text : drawn.addressText) {
+            if (!isPartOf(text, address)) {
+                problems.add(prefix + "the address text is not part of " + address);
+            }
+        }
+    }
+
+    // Address of the WIF private key (re-derived with KSKey), or null if the WIF is not valid
+    private static String derive(String wif, String hrp) {
+        byte[] payload = null;
+        byte[] privateKey = null;
+        try {
+            payload = Base58.decodeChecked(wif);
+            if (payload.length != 34 || (payload[0] != MAINNET && payload[0] != TESTNET) || payload[33] != 1) return null;
+
+            privateKey = Arrays.copyOfRange(payload, 1, 33);
+            KSKey key = new KSKey(privateKey);
+            if (!key.getWIF(payload[0] == TESTNET).equals(wif)) return null; // Must encode back to exactly the same text
+
+            return key.getP2WPKH(hrp, 0);
+        } catch (IllegalArgumentException e) { // Includes AddressFormatException (bad Base58 or checksum)
+            return null;
+        } finally {
+            if (payload != null) Arrays.fill(payload, (byte) 0);
+            if (privateKey != null) Arrays.fill(privateKey, (byte) 0);
+        }
+    }
+
+    // True if the pieces of the text between any "..." appear in the address in the same order (e.g. "bc1q...x4kd" or "w508d6qej")
+    private static boolean isPartOf(String text, String address) {
+        int from = 0;
+        int found = 0;
+        for (String piece : text.trim().split("\\.\\.\\.")) {
+            if (piece.isEmpty()) continue;
+
+            int index = address.indexOf(piece, from);
+            if (index < 0) return false;
+            from = index + piece.length();
+            found += piece.length();
+        }
+        return found > 0;
+    }
+
+    // Decodes every QR code on the page (null = unreadable). The page is rasterized a strip at a time, each strip the full width of
+    // the page and just tall enough for a row of QR codes, so only about an inch of it is held at once (whatever the resolution).
+    private static Map<QR, String> scan(DisplayList list, Collection<Slot> slots) {
+        double scale = (double) DPI / list.getResolution();
+        int width = (int) Math.round(PAGEWIDTH * DPI);
+        int height = (int) Math.round(PAGEHEIGHT * DPI);
+
+        List<QR> qrs = new ArrayList<>();
+        for (Slot slot : slots) qrs.addAll(slot.qrs);
+        qrs.sort(Comparator.comparingInt(qr -> qr.y));
+
+        Map<QR, String> texts = new HashMap<>();
+        for (int first = 0, last; first < qrs.size(); first = last) {
+            int top = (int) Math.floor(qrs.get(first).y * scale);
+            int bottom = (int) Math.ceil((qrs.get(first).y + qrs.get(first).size) * scale);
+            for (last = first + 1; last < qrs.size() && (int) Math.floor(qrs.get(last).y * scale) < bottom; last++) { // QR codes that overlap the strip widen it
+                bottom = Math.max(bottom, (int) Math.ceil((qrs.get(last).y + qrs.get(last).size) * scale));
+            }
+            top = Math.max(0, top);
+            bottom = Math.min(height, bottom);
+            if (bottom <= top) continue;
+
+            long bytes = RasterExport.getBytes(width, bottom - top) + 3L * (bottom - top) * (bottom - top); // The strip, and the buffers decoding a QR code as tall as it
+            int megabytes = (int) Math.min(MEGABYTES, (bytes >> 20) + 1);
+            MEMORY.acquireUninterruptibly(megabytes);
+            try {
+                BufferedImage strip = render(list, scale, top, width, bottom - top);
+                for (int i = first; i < last; i++) {
+                    texts.put(qrs.get(i), decode(strip, top, qrs.get(i), scale));
+                }
+            } finally {
+                MEMORY.release(megabytes);
+            }
+        }
+        return texts;
+    }
+
+    // Rasterizes the rows of the page from "top" as RasterExport would draw them; they are the same pixels as those of the whole page
+    private static BufferedImage render(DisplayList list, double scale, int top, int width, int height) {
+        try {
+            return RasterExport.rasterize(0, top, width, height, g -> {
+                g.scale(scale, scale);
+                g.setRenderingHint(DisplayList.DEVICERESOLUTION, DPI); // Snapped to this page's pixels (not a band's), as an export's are
+                list.render(new DisplayList.GraphicsRenderer(g, list.getResolution()));
+            });
+        } catch (PrinterException e) { // Only a Printable reports these; a display list draws without them
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Cuts the QR code out of the strip of the page starting at row "stripTop" (with a white quiet zone around it) and decodes it; null if it cannot be read
+    private static String decode(BufferedImage image, int stripTop, QR qr, double scale) {
+        int left = Math.max(0, (int) Math.floor(qr.x * scale));
+        int top = Math.max(stripTop, (int) Math.floor(qr.y * scale));
+        int right = Math.min(image.getWidth(), (int) Math.ceil((qr.x + qr.size) * scale));
+        int bottom = Math.min(stripTop + image.getHeight(), (int) Math.ceil((qr.y + qr.size) * scale));
+        if (right <= left || bottom <= top) return null;
+
+        int quiet = QUIETZONE * (int) Math.ceil((double) (right - left) / qr.modules);
+        int width = right - left + 2 * quiet;
+        int height = bottom - top + 2 * quiet;
+        byte[] page = ((DataBufferByte) image.getRaster().getDataBuffer()).getData(); // 8 pixels per byte (first pixel in the high bit); 0 = black
+        int stride = (image.getWidth() + 7) / 8;
+        byte[] crop = new byte[width * height]; // One byte per pixel
+        Arrays.fill(crop, (byte) 0xFF);
+        for (int y = top; y < bottom; y++) {
+            int row = (y - top + quiet) * width + quiet - left;
+            for (int x = left; x < right; x++) {
+                if ((page[(y - stripTop) * stride + (x >> 3)] & (0x80 >> (x & 7))) == 0) crop[row + x] = 0;
+            }
+        }
+
+        String text = read(new HybridBinarizer(new PlanarYUVLuminanceSource(crop, width, height, 0, 0, width, height, false)));
+        if (text == null) { // A grey code is a halftone: shrunk (each block of pixels averaged), it is its grey again, as a camera sees the dots
+            int w = width / HALFTONE;
+            int h = height / HALFTONE;
+            byte[] grey = shrink(crop, width, w, h, HALFTONE);
+            LuminanceSource source = new PlanarYUVLuminanceSource(grey, w, h, 0, 0, w, h, false);
+            text = read(new HybridBinarizer(source));
+            if (text == null) text = read(new GlobalHistogramBinarizer(source)); // One even tone on white, which a global threshold separates
+        }
+        return text;
+    }
+
+    private static String read(Binarizer binarizer) {
+        BinaryBitmap bitmap = new BinaryBitmap(binarizer);
+        QRCodeReader reader = new QRCodeReader();
+        try {
+            return reader.decode(bitmap, Collections.singletonMap(DecodeHintType.PURE_BARCODE, Boolean.TRUE)).getText(); // Straight, unskewed code
+        } catch (ReaderException e) {
+            try {
+                reader.reset();
+                return reader.decode(bitmap).getText(); // Let the detector find it
+            } catch (ReaderException ignored) {
+                return null;
+            }
+        }
+    }
+
+    // Averages each size x size block of pixels into one, which turns a halftone back into its grey
+    private static byte[] shrink(byte[] crop, int stride, int width, int height, int size) {
+        byte[] grey = new byte[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int sum = 0;
+                for (int i = 0; i < size; i++) {
+                    for (int j = 0; j < size; j++) {
+                        sum += crop[(y * size + i) * stride + x * size + j] & 0xFF;
+                    }
+                }
+                grey[y * width + x] = (byte) (sum / (size * size));
+            }
+        }
+        return grey;
+    }
+
+    // Collects the QR codes and text drawn for each slot
+    private static class Capture implements DisplayList.Renderer {
+        final Map<Integer, Slot> slots = new TreeMap<>();
+        int untagged; // QR codes drawn outside of any slot
+
+        private int slot;
+        private DisplayList.Part part = DisplayList.Part.NONE;
+
+        public void setPart(int slot, DisplayList.Part part) {
+            this.slot = slot;
+            this.part = part;
+        }
+
+        public void drawQR(BitMatrix matrix, int x, int y, int size) {
+            if (part == DisplayList.Part.NONE) {
+                untagged++;
+            } else {
+                slots.computeIfAbsent(slot, s -> new Slot()).qrs.add(new QR(part, x, y, size, matrix.getWidth()));
+            }
+        }
+
+        public void drawString(String text, Font font, int x, int y) {
+            if (part == DisplayList.Part.ADDRESS) {
+                slots.computeIfAbsent(slot, s -> new Slot()).addressText.add(text);
+            } else if (part == DisplayList.Part.PRIVATEKEY) {
+                slots.computeIfAbsent(slot, s -> new Slot()).privateKeyText.add(text);
+            }
+        }
+
+        public void setColor(Color color) {
+        }
+
+        public void setStroke(Stroke stroke) {
+        }
+
+        public void draw(Shape shape) {
+        }
+
+        public void fill(Shape shape) {
+        }
+
+        public void drawTemplate(DisplayList template) { // Static artwork; holds no keys
+        }
+    }
+
+    private static class Slot {
+        final List<QR> qrs = new ArrayList<>();
+        final List<String> addressText = new ArrayList<>();
+        final List<String> privateKeyText = new ArrayList<>();
+    }
+
+    private static class QR {
+        final DisplayList.Part part;
+        final int x; // Upper left corner and size (display list units)
+        final int y;
+        final int size;
+        final int modules; // Modules across the code
+
+        QR(DisplayList.Part part, int x, int y, int size, int modules) {
+            this.part = part;
+            this.x = x;
+            this.y = y;
+            this.size = size;
+            this.modules = modules;
+        }
+    }
+}
@@ -18,12 +18,11 @@
  */
 package org.satoshiware.keystickers.random;
 
-import java.nio.ByteBuffer;
-
 public class FortunaGenerator extends org.jitsi.bccontrib.prng.FortunaGenerator implements KSGenerator.RandomInterface {
     private static final int BUFFERSIZE = 4096;
 
-    private ByteBuffer buffer;
+    private final byte[] buffer = new byte[BUFFERSIZE]; // Random bytes waiting to be handed out
+    private int position; // Index of the next unused byte within the buffer
 
     public FortunaGenerator(byte[] seed) {
         super(seed);
@@ -32,19 +31,35 @@ public class FortunaGenerator extends org.jitsi.bccontrib.prng.FortunaGenerator
             throw new IllegalArgumentException("Minimum seed length is 32 bytes.");
         }
 
-        byte[] bytes = new byte[BUFFERSIZE];
-        this.nextBytes(bytes);
-        buffer = ByteBuffer.wrap(bytes);
+        refill();
     }
 
     public byte getByte() {
-        if(!buffer.hasRemaining()) {
-            byte[] bytes = new byte[BUFFERSIZE];
-            this.nextBytes(bytes);
-            buffer = ByteBuffer.wrap(bytes);
+        if(position == BUFFERSIZE) {
+            refill();
         }
 
-        return buffer.get();
+        return buffer[position++];
+    }
+
+    // Copies whole runs out of the buffer; the stream of bytes is the same as calling getByte() repeatedly
+    public void getBytes(byte[] bytes, int offset, int length) {
+        while(length > 0) {
+            if(position == BUFFERSIZE) {
+                refill();
+            }
+
+            int n = Math.min(length, BUFFERSIZE - position);
+            System.arraycopy(buffer, position, bytes, offset, n);
+            position += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    private void refill() {
+        this.nextBytes(buffer);
+        position = 0;
     }
 
     public String getName() {
@@ -0,0 +1,165 @@
+/*
+ *      Continuous health tests for one random source, in the style of NIST
+ *      SP 800-90B section 4.4. Every byte the source produces goes through:
+ *
+ *          Repetition Count Test       Fails if the same byte value repeats
+ *                                      RCTCUTOFF times in a row.
+ *          Adaptive Proportion Test    Fails if the first byte of a window
+ *                                      of APTWINDOW bytes appears APTCUTOFF
+ *                                      or more times within that window.
+ *
+ *      The cutoffs come from the entropy claimed per byte (ENTROPY bits) and
+ *      the acceptable false positive rate (ALPHA = 2^-40), so a healthy
+ *      source will practically never trip them, but a stuck or badly biased
+ *      one trips them within a few hundred bytes. The tests run over whole
+ *      blocks with a couple of compares per byte and keep their state between
+ *      blocks, so they see the source's output as one continuous stream.
+ *      Eight bytes are screened at a time; only words holding a repeated byte
+ *      or the window's reference value are walked byte by byte.
+ *
+ *      This program is free software: you can redistribute it and/or modify
+ *      it under the terms of the GNU General Public License as published by
+ *      the Free Software Foundation, either version 3 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License
+ *      along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.satoshiware.keystickers.random;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+public class HealthTest {
+    private static final int ENTROPY = 8; // Entropy claimed per byte (bits); the sources are cryptographic generators
+    private static final int ALPHABITS = 40; // False positive rate ALPHA = 2^-40 per test
+    private static final int APTWINDOW = 512; // Window size of the Adaptive Proportion Test for non-binary samples
+    private static final int STARTUPBYTES = 1024; // Bytes tested (and discarded) before a source is used
+
+    public static final int RCTCUTOFF = 1 + (ALPHABITS + ENTROPY - 1) / ENTROPY; // 1 + ceil(-log2(ALPHA) / H)
+    public static final int APTCUTOFF = aptCutoff();
+
+    private static final VarHandle LANES = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN); // Byte j of a word is bits 8j to 8j + 7
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+
+    private final String name; // Name of the source (for the failure report)
+
+    private byte last; // Repetition Count Test: current value and how many times in a row it has been seen
+    private int repeats;
+
+    private byte reference; // Adaptive Proportion Test: first value of the window, matches so far, and samples seen so far
+    private int matches;
+    private int seen;
+
+    public HealthTest(String name) {
+        this.name = name;
+    }
+
+    // Pulls STARTUPBYTES through the tests before the source is used for anything; the bytes are discarded
+    public static HealthTest startup(KSGenerator.RandomInterface source) {
+        HealthTest test = new HealthTest(source.getName());
+        byte[] bytes = new byte[STARTUPBYTES];
+        source.getBytes(bytes, 0, bytes.length);
+        test.check(bytes, 0, bytes.length);
+        Arrays.fill(bytes, (byte) 0);
+        return test;
+    }
+
+    // Runs both tests over bytes[offset] to bytes[offset + length - 1]; the next call continues the same stream.
+    // Throws a HealthTestException (naming the source) as soon as either test fails.
+    public void check(byte[] bytes, int offset, int length) {
+        int i = offset;
+        int end = offset + length;
+        byte last = this.last;
+        int repeats = this.repeats;
+
+        while (i < end) {
+            if (seen == 0) { // Start a new window with this byte as its reference
+                reference = bytes[i];
+                matches = 1;
+                seen = 1;
+
+                if (bytes[i] == last) {
+                    if (++repeats >= RCTCUTOFF) fail("Repetition Count Test", repeats + " identical bytes in a row");
+                } else {
+                    last = bytes[i];
+                    repeats = 1;
+                }
+                i++;
+                continue;
+            }
+
+            int stop = Math.min(end, i + (APTWINDOW - seen)); // Rest of the window within this block
+            byte reference = this.reference;
+            long references = (reference & 0xFFL) * ONES; // The reference in every lane
+            int matches = this.matches;
+            seen += stop - i;
+            while (i < stop) {
+                // Fast path: eight bytes at once when none of them equals the byte before it or the reference
+                if (i + Long.BYTES <= stop && bytes[i] != last) {
+                    long word = (long) LANES.get(bytes, i);
+                    if (!hasZeroByte(word ^ (word >>> 8)) && !hasZeroByte(word ^ references)) {
+                        last = bytes[i + Long.BYTES - 1];
+                        repeats = 1;
+                        i += Long.BYTES;
+                        continue;
+                    }
+                }
+
+                byte b = bytes[i++];
+                if (b == last) {
+                    if (++repeats >= RCTCUTOFF) fail("Repetition Count Test", repeats + " identical bytes in a row");
+                } else {
+                    last = b;
+                    repeats = 1;
+                }
+                if (b == reference) matches++;
+            }
+            this.matches = matches;
+
+            if (matches >= APTCUTOFF) fail("Adaptive Proportion Test", matches + " of " + seen + " bytes were the same value");
+            if (seen == APTWINDOW) seen = 0;
+        }
+
+        this.last = last;
+        this.repeats = repeats;
+    }
+
+    // True if any byte of the word is zero (exact when it returns false)
+    private static boolean hasZeroByte(long word) {
+        return ((word - ONES) & ~word & HIGHS) != 0;
+    }
+
+    private void fail(String test, String detail) {
+        throw new HealthTestException("Random source \"" + name + "\" FAILED the " + test + " (" + detail + "); key generation stopped");
+    }
+
+    // 1 + CRITBINOM(W, 2^-H, 1 - ALPHA): the smallest count C where the chance of C or more matches in a window is at most ALPHA
+    private static int aptCutoff() {
+        double p = Math.pow(2, -ENTROPY);
+        double alpha = Math.pow(2, -ALPHABITS);
+
+        double[] pmf = new double[APTWINDOW + 1]; // Binomial(W, p)
+        pmf[0] = Math.pow(1 - p, APTWINDOW);
+        for (int k = 1; k <= APTWINDOW; k++) {
+            pmf[k] = pmf[k - 1] * (APTWINDOW - k + 1) / k * p / (1 - p);
+        }
+
+        double tail = 0;
+        int cutoff = APTWINDOW + 1;
+        for (int k = APTWINDOW; k >= 0 && tail + pmf[k] <= alpha; k--) {
+            tail += pmf[k];
+            cutoff = k;
+        }
+
+        return cutoff;
+    }
+}
@@ -2,7 +2,12 @@
  *      This class encapsulates multiple random number generators. Each random
  *      byte is a result of XOR'ing bytes from each generator. This class also
  *      provides the interface required for RNG compatibility and a method
- *      runQC() that shows a quick visual check of the integrity of each RNG.
+ *      runQC() that runs a statistical test battery (see RandomTests) on each
+ *      RNG and on the mixed stream. Every source's output also passes through
+ *      continuous health tests (see HealthTest); if one fails, getBytes throws
+ *      a HealthTestException naming the source.
+ *      An instance is not thread safe; use split() to give each worker thread
+ *      its own independent stream.
  *
  *      This program is free software: you can redistribute it and/or modify
  *      it under the terms of the GNU General Public License as published by
@@ -19,65 +24,137 @@
  */
 package org.satoshiware.keystickers.random;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 public class KSGenerator {
-    public static int OUTPUTLENGTH = 64; // Number of bytes to display to user per line
-    public static int LINECOUNT = 16; // Number of lines to display to user per generator
+    public static int SPLITSEEDSIZE = 64; // Number of bytes (from the mix of all generators) used to seed each split stream
+
+    private static final int BLOCKSIZE = 4096; // Number of bytes pulled from each generator at a time
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.nativeOrder()); // 8 byte lanes over a byte[]
 
     private final ArrayList<RandomInterface> generators;
+    private final ArrayList<HealthTest> healthTests = new ArrayList<>(); // One for each generator (same order)
+    private final byte[] block = new byte[BLOCKSIZE]; // Scratch space for the output of the 2nd, 3rd, ... generators
 
     public KSGenerator() {
         generators = new ArrayList<>();
     }
 
-    // Add an RNG that uses the RandomInterface to this instance
+    // Add an RNG that uses the RandomInterface to this instance (after it passes the start-up health tests)
     public void addGenerator(RandomInterface ri) {
+        healthTests.add(HealthTest.startup(ri));
         generators.add(ri);
     }
 
     // XOR bytes from each RNG and store the result in the "bytes" array
     public void getBytes(byte[] bytes) {
-        for(int i = 0; i < bytes.length; i++) {
-            bytes[i] = 0;
-            for (RandomInterface generator : generators) {
-                bytes[i] = (byte) (bytes[i] ^ generator.getByte());
-            }
-        }
+        getBytes(bytes, 0, bytes.length);
     }
 
-    // This method shows a quick visual check of the integrity of each RNG
-    public void runQC() {
-        System.out.println("Visual RNG Sanity Check:");
-        for (RandomInterface generator : generators) {
-            System.out.println("\t" + generator.getName() + ":");
+    // XOR blocks from each RNG and store the result in bytes[offset] to bytes[offset + length - 1]
+    public void getBytes(byte[] bytes, int offset, int length) {
+        if (generators.isEmpty()) {
+            Arrays.fill(bytes, offset, offset + length, (byte) 0);
+            return;
+        }
 
-            byte[] out = new byte[OUTPUTLENGTH];
-            for (int k = 0; k < LINECOUNT; k++) {
-                for (int j = 0; j < OUTPUTLENGTH; j++) {
-                    out[j] = generator.getByte();
+        int start = offset;
+        try {
+            while (length > 0) {
+                int n = Math.min(length, BLOCKSIZE);
+
+                generators.get(0).getBytes(bytes, offset, n); // The first generator writes straight into the output
+                healthTests.get(0).check(bytes, offset, n);
+                for (int g = 1; g < generators.size(); g++) {
+                    generators.get(g).getBytes(block, 0, n);
+                    healthTests.get(g).check(block, 0, n);
+                    xor(block, bytes, offset, n);
                 }
-                System.out.println("\t\t" + bytesToHex(out));
+
+                offset += n;
+                length -= n;
             }
-            System.out.print("\n");
+        } catch (HealthTestException e) { // Nothing from a failed source is handed out
+            Arrays.fill(bytes, start, offset + length, (byte) 0);
+            Arrays.fill(block, (byte) 0);
+            throw e;
         }
     }
 
-    private static String bytesToHex(byte[] bytes) {
-        char[] hexArray = "0123456789ABCDEF".toCharArray();
-        char[] hexChars = new char[bytes.length * 2];
-        for ( int j = 0; j < bytes.length; j++ ) {
-            int v = bytes[j] & 0xFF;
-            hexChars[j * 2] = hexArray[v >>> 4];
-            hexChars[j * 2 + 1] = hexArray[v & 0x0F];
+    // dst[dstOffset + i] ^= src[i], eight bytes at a time
+    private static void xor(byte[] src, byte[] dst, int dstOffset, int length) {
+        int i = 0;
+        for (; i + Long.BYTES <= length; i += Long.BYTES) {
+            LONGS.set(dst, dstOffset + i, (long) LONGS.get(dst, dstOffset + i) ^ (long) LONGS.get(src, i));
+        }
+        for (; i < length; i++) {
+            dst[dstOffset + i] ^= src[i];
+        }
+    }
+
+    // Creates an independent stream for a worker thread: a new Fortuna generator keyed from this generator's
+    // output (the XOR of all its sources) that is XOR'd with the worker's own SecureRandom.
+    public synchronized KSGenerator split() {
+        byte[] seed = new byte[SPLITSEEDSIZE];
+        getBytes(seed);
+
+        KSGenerator stream = new KSGenerator();
+        stream.addGenerator(new SecureRandom());
+        stream.addGenerator(new FortunaGenerator(seed));
+
+        Arrays.fill(seed, (byte) 0);
+        return stream;
+    }
+
+    // Creates "count" independent streams; see split()
+    public KSGenerator[] split(int count) {
+        KSGenerator[] streams = new KSGenerator[count];
+        for (int i = 0; i < count; i++) {
+            streams[i] = split();
         }
-        return new String(hexChars);
+        return streams;
+    }
+
+    // Runs the statistical tests on each RNG and on a split stream (the same mix the key generation uses) all at once.
+    // Returns true if every test passed.
+    public boolean runQC() {
+        ArrayList<RandomInterface> sources = new ArrayList<>(generators);
+
+        KSGenerator mixed = split(); // Independent of the sources above, so everything can be tested in parallel
+        sources.add(new RandomInterface() {
+            public byte getByte() {
+                byte[] b = new byte[1];
+                mixed.getBytes(b);
+                return b[0];
+            }
+
+            public void getBytes(byte[] bytes, int offset, int length) {
+                mixed.getBytes(bytes, offset, length);
+            }
+
+            public String getName() {
+                return "KSGenerator split stream: all sources mixed, as used for the keys";
+            }
+        });
+
+        return RandomTests.run(sources);
     }
 
     // This describes the requirements for RNG compatibility within this class
     public interface RandomInterface {
         byte getByte();
 
+        // Bulk fill; must produce the same stream of bytes as calling getByte() "length" times
+        default void getBytes(byte[] bytes, int offset, int length) {
+            for (int i = offset; i < offset + length; i++) {
+                bytes[i] = getByte();
+            }
+        }
+
         String getName();
     }
 }
\ No newline at end of file
@@ -0,0 +1,342 @@
+/*
+ *      Statistical test battery for the random sources. Each source streams
+ *      MEGABYTES of output in chunks; every chunk is analyzed on a shared pool
+ *      of threads (one per core) while the source keeps generating, and the
+ *      partial results are merged in order. Every source runs at the same
+ *      time on its own thread.
+ *
+ *      Tests (bits are taken most significant first):
+ *          monobit         Proportion of ones (NIST SP 800-22 2.1)
+ *          runs            Number of runs of identical bits (NIST SP 800-22 2.3)
+ *          longest run     Longest run of ones in each 10,000 bit block (NIST SP 800-22 2.4)
+ *          chi-square      Distribution of the byte values (255 degrees of freedom)
+ *          serial corr.    Correlation between adjacent bytes (z-test)
+ *          compression     Size after deflating; random data does not compress
+ *
+ *      A test fails if its p-value is below ALPHA. This is a sanity check
+ *      that catches broken or stuck sources; passing it does not prove that
+ *      a source is unpredictable.
+ *
+ *      This program is free software: you can redistribute it and/or modify
+ *      it under the terms of the GNU General Public License as published by
+ *      the Free Software Foundation, either version 3 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License
+ *      along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.satoshiware.keystickers.random;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+public class RandomTests {
+    public static int MEGABYTES = 16; // Amount of output tested from each source
+    public static double ALPHA = 0.0001; // Significance level; low enough that a healthy source rarely fails any of the tests by chance
+    public static double MINCOMPRESSION = 0.999; // Smallest acceptable (deflated size / original size)
+
+    private static final int BLOCKBITS = 10000; // Block size of the longest run test (NIST: M = 10^4 for n >= 750,000)
+    private static final int BLOCKBYTES = BLOCKBITS / 8;
+    private static final int CHUNKSIZE = BLOCKBYTES * 1024; // Bytes analyzed at a time (a whole number of longest run blocks)
+    private static final double[] LONGESTRUNPROBABILITIES = {0.0882, 0.2092, 0.2483, 0.1933, 0.1208, 0.0675, 0.0727}; // Longest run <= 10, 11, ..., 15, >= 16
+
+    private static final byte[] LEADING = new byte[256]; // Ones at the start (most significant end) of each byte value
+    private static final byte[] TRAILING = new byte[256]; // Ones at the end (least significant end)
+    private static final byte[] LONGEST = new byte[256]; // Longest run of ones within the byte
+
+    static {
+        for (int b = 0; b < 256; b++) {
+            LEADING[b] = (byte) Integer.numberOfLeadingZeros(~(b << 24));
+            TRAILING[b] = (byte) Integer.numberOfTrailingZeros(~b);
+
+            int run = 0;
+            for (int bit = 7; bit >= 0; bit--) {
+                run = (b >> bit & 1) == 1 ? run + 1 : 0;
+                LONGEST[b] = (byte) Math.max(LONGEST[b], run);
+            }
+        }
+    }
+
+    // Runs the battery on every source at once and prints the results. Returns true if every test passed.
+    public static boolean run(List<KSGenerator.RandomInterface> sources) {
+        long bytes = (long) MEGABYTES << 20;
+        System.out.println("Statistical RNG Tests (" + MEGABYTES + " MB from each source; a test fails if p < " + ALPHA + "):");
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        ExecutorService analyzers = Executors.newFixedThreadPool(cores, threads("RandomTests-Analyzer"));
+        ExecutorService generators = Executors.newFixedThreadPool(sources.size(), threads("RandomTests-Source"));
+        Semaphore inFlight = new Semaphore(2 * cores + sources.size()); // Bounds the number of chunks held in memory
+
+        boolean passed = true;
+        try {
+            List<Future<Report>> reports = new ArrayList<>();
+            for (KSGenerator.RandomInterface source : sources) {
+                reports.add(generators.submit(() -> test(source, bytes, analyzers, inFlight)));
+            }
+
+            for (Future<Report> report : reports) {
+                passed &= report.get().print();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.out.println("ERROR! The RNG tests were interrupted");
+            return false;
+        } catch (ExecutionException e) {
+            System.out.println("ERROR! The RNG tests failed to run: " + e.getCause());
+            return false;
+        } finally {
+            generators.shutdownNow();
+            analyzers.shutdownNow();
+        }
+
+        System.out.println(passed ? "Success! Every RNG passed every test.\n" : "ERROR! Not every RNG passed every test!\n");
+        return passed;
+    }
+
+    // Streams the bytes from the source; each chunk is analyzed in the background
+    private static Report test(KSGenerator.RandomInterface source, long bytes, ExecutorService analyzers, Semaphore inFlight) throws Exception {
+        List<Future<Chunk>> chunks = new ArrayList<>();
+        long nanos = 0;
+        for (long done = 0; done < bytes; done += CHUNKSIZE) {
+            byte[] data = new byte[(int) Math.min(CHUNKSIZE, bytes - done)];
+
+            inFlight.acquire();
+            long start = System.nanoTime();
+            source.getBytes(data, 0, data.length);
+            nanos += System.nanoTime() - start;
+
+            chunks.add(analyzers.submit(() -> {
+                try {
+                    return new Chunk(data);
+                } finally {
+                    inFlight.release();
+                }
+            }));
+        }
+
+        Report report = new Report(source.getName(), bytes, nanos);
+        for (Future<Chunk> chunk : chunks) {
+            report.add(chunk.get());
+        }
+        return report;
+    }
+
+    // Statistics of one chunk that can be merged with those of the neighboring chunks
+    private static class Chunk {
+        long ones;
+        long transitions; // Adjacent bits that differ (within this chunk)
+        final int firstByte;
+        final int lastByte;
+        final long[] histogram = new long[256];
+        long products; // Sum of each byte times the next (within this chunk)
+        final long[] longestRuns = new long[LONGESTRUNPROBABILITIES.length]; // Blocks in each longest run class
+        final long compressed; // Deflated size
+
+        Chunk(byte[] data) {
+            firstByte = data[0] & 0xFF;
+            lastByte = data[data.length - 1] & 0xFF;
+
+            int previous = -1;
+            int run = 0; // Ones up to the current byte within the current block
+            int longest = 0;
+            for (int i = 0; i < data.length; i++) {
+                int b = data[i] & 0xFF;
+
+                histogram[b]++;
+                ones += Integer.bitCount(b);
+                transitions += Integer.bitCount((b ^ (b >>> 1)) & 0x7F);
+                if (previous >= 0) {
+                    transitions += (previous & 1) ^ (b >>> 7);
+                    products += (long) previous * b;
+                }
+                previous = b;
+
+                if (b == 0xFF) {
+                    run += 8;
+                } else {
+                    longest = Math.max(longest, Math.max(run + LEADING[b], LONGEST[b]));
+                    run = TRAILING[b];
+                }
+                if ((i + 1) % BLOCKBYTES == 0) { // End of a longest run block
+                    longest = Math.max(longest, run);
+                    longestRuns[Math.min(Math.max(longest, 10), 16) - 10]++;
+                    run = 0;
+                    longest = 0;
+                }
+            }
+
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                deflater.setInput(data);
+                deflater.finish();
+                byte[] out = new byte[1 << 16];
+                while (!deflater.finished()) {
+                    deflater.deflate(out);
+                }
+                compressed = deflater.getBytesWritten();
+            } finally {
+                deflater.end();
+            }
+        }
+    }
+
+    // Merged statistics and the test results for one source
+    private static class Report {
+        final String name;
+        final long bytes;
+        final long nanos; // Time spent generating
+        long ones;
+        long transitions;
+        final long[] histogram = new long[256];
+        long products;
+        final long[] longestRuns = new long[LONGESTRUNPROBABILITIES.length];
+        long compressed;
+        int lastByte = -1;
+
+        Report(String name, long bytes, long nanos) {
+            this.name = name;
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+
+        // Chunks must be added in order
+        void add(Chunk chunk) {
+            ones += chunk.ones;
+            transitions += chunk.transitions;
+            products += chunk.products;
+            compressed += chunk.compressed;
+            for (int i = 0; i < 256; i++) histogram[i] += chunk.histogram[i];
+            for (int i = 0; i < longestRuns.length; i++) longestRuns[i] += chunk.longestRuns[i];
+
+            if (lastByte >= 0) { // The pair of bytes across the boundary
+                transitions += (lastByte & 1) ^ (chunk.firstByte >>> 7);
+                products += (long) lastByte * chunk.firstByte;
+            }
+            lastByte = chunk.lastByte;
+        }
+
+        // Prints the result of each test; returns true if they all passed
+        boolean print() {
+            double n = bytes * 8.0;
+            System.out.println(String.format("\t%s (%,d bytes at %.1f MB/s):", name, bytes, bytes / 1e6 / (nanos / 1e9)));
+
+            // Monobit
+            double s = Math.abs(2.0 * ones - n) / Math.sqrt(n);
+            boolean passed = print("monobit", erfc(s / Math.sqrt(2)), String.format("ones = %.6f", ones / n));
+
+            // Runs (only meaningful if the monobit proportion is close enough to 1/2)
+            double pi = ones / n;
+            if (Math.abs(pi - 0.5) >= 2 / Math.sqrt(n)) {
+                passed &= print("runs", 0, "not run; too far from half ones");
+            } else {
+                double runs = transitions + 1;
+                passed &= print("runs", erfc(Math.abs(runs - 2 * n * pi * (1 - pi)) / (2 * Math.sqrt(2 * n) * pi * (1 - pi))), String.format("runs = %,.0f", runs));
+            }
+
+            // Longest run of ones in a block
+            long blocks = 0;
+            for (long count : longestRuns) blocks += count;
+            double chi = 0;
+            for (int i = 0; i < longestRuns.length; i++) {
+                double expected = blocks * LONGESTRUNPROBABILITIES[i];
+                chi += (longestRuns[i] - expected) * (longestRuns[i] - expected) / expected;
+            }
+            passed &= print("longest run", igamc((longestRuns.length - 1) / 2.0, chi / 2), String.format("%,d blocks", blocks));
+
+            // Byte distribution
+            double expected = bytes / 256.0;
+            double sum = 0, squares = 0, entropy = 0;
+            chi = 0;
+            for (int i = 0; i < 256; i++) {
+                chi += (histogram[i] - expected) * (histogram[i] - expected) / expected;
+                sum += (double) i * histogram[i];
+                squares += (double) i * i * histogram[i];
+                if (histogram[i] > 0) entropy -= histogram[i] / (double) bytes * Math.log(histogram[i] / (double) bytes) / Math.log(2);
+            }
+            passed &= print("chi-square", igamc(255 / 2.0, chi / 2), String.format("chi2 = %.1f; %.6f bits/byte", chi, entropy));
+
+            // Serial correlation of adjacent bytes (there are bytes - 1 pairs)
+            double pairs = bytes - 1;
+            double r = (pairs * products - sum * sum) / (pairs * squares - sum * sum);
+            passed &= print("serial corr.", erfc(Math.abs(r) * Math.sqrt(pairs) / Math.sqrt(2)), String.format("r = %.6f", r));
+
+            // Compression
+            double ratio = compressed / (double) bytes;
+            boolean incompressible = ratio >= MINCOMPRESSION;
+            System.out.println(String.format("\t\t%-14s %-12s %-5s %s", "compression", "", incompressible ? "PASS" : "FAIL", String.format("%.2f%% of original size", 100 * ratio)));
+            passed &= incompressible;
+
+            return passed;
+        }
+
+        private static boolean print(String test, double p, String detail) {
+            boolean passed = p >= ALPHA;
+            System.out.println(String.format("\t\t%-14s p = %-8.4f %-5s %s", test, p, passed ? "PASS" : "FAIL", detail));
+            return passed;
+        }
+    }
+
+    // Complementary error function
+    static double erfc(double x) {
+        return x < 0 ? 2 - igamc(0.5, x * x) : igamc(0.5, x * x);
+    }
+
+    // Regularized upper incomplete gamma function Q(a, x)
+    static double igamc(double a, double x) {
+        if (x <= 0) return 1;
+
+        if (x < a + 1) { // Series for P(a, x)
+            double term = 1 / a, sum = term;
+            for (int n = 1; n < 10000; n++) {
+                term *= x / (a + n);
+                sum += term;
+                if (Math.abs(term) < Math.abs(sum) * 1e-15) break;
+            }
+            return 1 - sum * Math.exp(-x + a * Math.log(x) - lnGamma(a));
+        }
+
+        // Continued fraction for Q(a, x) (modified Lentz)
+        double tiny = 1e-300;
+        double b = x + 1 - a, c = 1 / tiny, d = 1 / b, h = d;
+        for (int n = 1; n < 10000; n++) {
+            double an = -n * (n - a);
+            b += 2;
+            d = an * d + b;
+            if (Math.abs(d) < tiny) d = tiny;
+            c = b + an / c;
+            if (Math.abs(c) < tiny) c = tiny;
+            d = 1 / d;
+            double delta = d * c;
+            h *= delta;
+            if (Math.abs(delta - 1) < 1e-15) break;
+        }
+        return Math.exp(-x + a * Math.log(x) - lnGamma(a)) * h;
+    }
+
+    // Natural log of the gamma function (Lanczos approximation)
+    private static double lnGamma(double x) {
+        double[] c = {76.18009172947146, -86.50532032941677, 24.01409824083091, -1.231739572450155, 0.1208650973866179e-2, -0.5395239384953e-5};
+        double y = x, tmp = x + 5.5;
+        tmp -= (x + 0.5) * Math.log(tmp);
+        double series = 1.000000000190015;
+        for (double coefficient : c) series += coefficient / ++y;
+        return -tmp + Math.log(2.5066282746310005 * series / x);
+    }
+
+    private static ThreadFactory threads(String name) {
+        final AtomicInteger index = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + index.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}